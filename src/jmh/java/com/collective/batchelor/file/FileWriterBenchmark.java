@@ -0,0 +1,82 @@
+package com.collective.batchelor.file;
+
+import com.google.common.base.Strings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * handle() throughput of the file writers, one op is one batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class FileWriterBenchmark {
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"100", "1000"})
+    public int messageSize;
+
+    private File directory;
+    private List<String> batch;
+    private BatchFileWriter batchFileWriter;
+    private RollingBatchFileWriter rollingBatchFileWriter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("jmh").toFile();
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(Strings.padEnd("message " + i, messageSize, 'x'));
+        }
+        batchFileWriter = new BatchFileWriter(new File(directory, "plain.log").getAbsolutePath());
+        rollingBatchFileWriter = new RollingBatchFileWriter(new File(directory, "rolling.log").getAbsolutePath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        batchFileWriter.done();
+        rollingBatchFileWriter.done();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Benchmark
+    public boolean batchFileWriter() {
+        return batchFileWriter.handle(batch);
+    }
+
+    @Benchmark
+    public boolean rollingBatchFileWriter() {
+        return rollingBatchFileWriter.handle(batch);
+    }
+}
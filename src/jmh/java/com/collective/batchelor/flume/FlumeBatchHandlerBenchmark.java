@@ -0,0 +1,64 @@
+package com.collective.batchelor.flume;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * appendBatch round trips against the local FlumeTestServer, which drops everything it receives.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class FlumeBatchHandlerBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 49152;
+
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    private FlumeTestServer server;
+    private FlumeBatchHandler handler;
+    private List<Event> batch;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        server = new FlumeTestServer(true, HOST, PORT);
+        handler = new FlumeBatchHandler(HOST, PORT, batchSize);
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(EventBuilder.withBody(("event " + i).getBytes()));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        handler.done();
+        server.close();
+    }
+
+    @Benchmark
+    public boolean handle() {
+        return handler.handle(batch);
+    }
+}
@@ -0,0 +1,91 @@
+package com.collective.batchelor.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * add() throughput with 1, 4 and 16 producers against a handler that does nothing, with and without staging.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class AsyncBatchExecutorBenchmark {
+
+    @Param({"1024", "65536"})
+    public int queueSize;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"DEFAULT", "BLOCKING", "SLEEPING"})
+    public String queue;
+
+    @Param({"0", "20"})
+    public int stagingChunk;
+
+    private AsyncBatchExecutor<String> executor;
+
+    @Setup(Level.Trial)
+    public void start() {
+        WaitStrategy waitStrategy = "DEFAULT".equals(queue) ? null : WaitStrategy.valueOf(queue);
+        List<BatchHandler<String>> handlers = Collections.<BatchHandler<String>>singletonList(new NoopHandler());
+        executor = new AsyncBatchExecutor<>(batchSize, queueSize, handlers, null, 10, 10, waitStrategy);
+        if (stagingChunk > 0) {
+            executor.setStaging(stagingChunk, 5);
+        }
+        executor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        executor.stop();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void add1Producer() {
+        executor.add("event");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void add4Producers() {
+        executor.add("event");
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void add16Producers() {
+        executor.add("event");
+    }
+
+    static class NoopHandler implements BatchHandler<String> {
+        @Override
+        public boolean handle(List<String> batch) {
+            return true;
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
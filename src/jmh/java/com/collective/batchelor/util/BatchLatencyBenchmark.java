@@ -0,0 +1,71 @@
+package com.collective.batchelor.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from add() until the handler saw the event, single producer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class BatchLatencyBenchmark {
+
+    @Param({"DEFAULT", "BLOCKING", "BUSY_SPIN"})
+    public String queue;
+
+    private AsyncBatchExecutor<Long> executor;
+    private volatile long handled;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void start() {
+        WaitStrategy waitStrategy = "DEFAULT".equals(queue) ? null : WaitStrategy.valueOf(queue);
+        BatchHandler<Long> handler = new BatchHandler<Long>() {
+            @Override
+            public boolean handle(List<Long> batch) {
+                handled = batch.get(batch.size() - 1);
+                return true;
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+        executor = new AsyncBatchExecutor<>(1, 1024, Collections.singletonList(handler), null, 10, 10, waitStrategy);
+        executor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        executor.stop();
+    }
+
+    @Benchmark
+    public long addAndWaitUntilHandled() {
+        long event = ++sequence;
+        executor.add(event);
+        while (handled < event) {
+            Thread.yield();
+        }
+        return event;
+    }
+}
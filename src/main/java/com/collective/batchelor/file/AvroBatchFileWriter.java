@@ -0,0 +1,161 @@
+package com.collective.batchelor.file;
+
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingOutputStream;
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.file.SeekableFileInput;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Writes events to an Avro object container file, compressed per block and with a sync marker between blocks,
+ * so the files can be split for parallel reads. Events are generic or specific records of <code>schema</code>.
+ * An existing file is continued, it must have been written with the same schema.
+ */
+public class AvroBatchFileWriter<T> implements FileBatchHandler<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AvroBatchFileWriter.class);
+    private static final int DEFAULT_DEFLATE_LEVEL = 6;
+
+    private final DataFileWriter<T> fileWriter;
+    private final CountingOutputStream countingStream;
+    private final DatumWriter<T> datumWriter;
+    // every event is encoded here first, an event that fails to encode does not end up in the block
+    private final EncodedEvent encoded = new EncodedEvent();
+    private final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(encoded, null);
+    private BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+    private long reportedBytes;
+
+    public AvroBatchFileWriter(String fileName, Schema schema) throws IOException {
+        this(fileName, schema, CodecFactory.deflateCodec(DEFAULT_DEFLATE_LEVEL), DataFileConstants.DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * @param codec        compresses each block, snappy needs snappy-java at runtime. A continued file keeps its codec.
+     * @param syncInterval approximate uncompressed bytes per block
+     */
+    public AvroBatchFileWriter(String fileName, Schema schema, CodecFactory codec, int syncInterval) throws IOException {
+        File file = new File(fileName);
+        boolean append = file.length() > 0;
+        this.datumWriter = new GenericDatumWriter<>(schema);
+        DataFileWriter<T> writer = new DataFileWriter<>(datumWriter);
+        writer.setSyncInterval(syncInterval);
+        this.countingStream = new CountingOutputStream(new FileOutputStream(file, true));
+        try {
+            if (append) {
+                try (SeekableFileInput in = new SeekableFileInput(file)) {
+                    writer.appendTo(in, countingStream);
+                }
+            } else {
+                writer.setCodec(codec);
+                writer.create(schema, countingStream);
+            }
+        } catch (IOException | RuntimeException e) {
+            countingStream.close();
+            throw e;
+        }
+        this.fileWriter = writer;
+    }
+
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
+    public static <T> FileBatchHandlerFactory<T> factory(Schema schema) {
+        return factory(schema, CodecFactory.deflateCodec(DEFAULT_DEFLATE_LEVEL), DataFileConstants.DEFAULT_SYNC_INTERVAL);
+    }
+
+    public static <T> FileBatchHandlerFactory<T> factory(final Schema schema, final CodecFactory codec, final int syncInterval) {
+        Preconditions.checkNotNull(schema);
+        Preconditions.checkNotNull(codec);
+        return new FileBatchHandlerFactory<T>() {
+            @Override
+            public FileBatchHandler<T> open(String fileName) throws IOException {
+                return new AvroBatchFileWriter<>(fileName, schema, codec, syncInterval);
+            }
+
+            @Override
+            public Compression getCompression() {
+                // the codec compresses blocks inside the container, the file itself stays plain
+                return Compression.none();
+            }
+        };
+    }
+
+    /**
+     * A new container file every hour, <code>basePath</code> should end in <code>.avro</code>. Leave compress on
+     * roll off, the blocks are compressed already and a gzipped file can't be split.
+     */
+    public static <T> RollingFileBatchHandler<T> rolling(String basePath, long maxBytes, Schema schema) {
+        return new RollingFileBatchHandler<>(basePath, maxBytes, AvroBatchFileWriter.<T>factory(schema));
+    }
+
+    /**
+     * bytes of the blocks written so far, the block being filled is not counted
+     */
+    @Override
+    public long getBytesWritten() {
+        return countingStream.getCount();
+    }
+
+    @Override
+    public boolean handle(List<T> messages) {
+        for (T message : messages) {
+            try {
+                encoded.reset();
+                datumWriter.write(message, encoder);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("can't encode event, dropping it", e);
+                metrics.dropped(1);
+                continue;
+            }
+            try {
+                fileWriter.appendEncoded(encoded.toByteBuffer());
+            } catch (IOException e) {
+                LOGGER.error("write failed", e);
+            }
+        }
+        reportBytes();
+        return true;
+    }
+
+    private void reportBytes() {
+        long bytes = getBytesWritten();
+        if (bytes > reportedBytes) {
+            metrics.bytesWritten(bytes - reportedBytes);
+            reportedBytes = bytes;
+        }
+    }
+
+    @Override
+    public void done() {
+        try {
+            fileWriter.close();
+        } catch (IOException e) {
+            LOGGER.error("close failed", e);
+        }
+        reportBytes();
+    }
+
+    private static final class EncodedEvent extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
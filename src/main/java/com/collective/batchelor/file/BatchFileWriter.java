@@ -1,26 +1,79 @@
 package com.collective.batchelor.file;
 
-import com.collective.batchelor.util.BatchHandler;
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.io.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.util.List;
 
-public class BatchFileWriter implements BatchHandler<String> {
+public class BatchFileWriter implements FileBatchHandler<String> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BatchFileWriter.class);
     private final BufferedWriter bufferedWriter;
+    private final CountingOutputStream countingStream;
+    private BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+    private long reportedBytes;
 
     public BatchFileWriter(String fileName) throws IOException {
-        this(new BufferedWriter(new FileWriter(new File(fileName), true)));
+        this(fileName, Compression.none());
+    }
+
+    /**
+     * @param compression compress while writing, the bytes written are the compressed bytes
+     */
+    public BatchFileWriter(String fileName, Compression compression) throws IOException {
+        this(new CountingOutputStream(new FileOutputStream(new File(fileName), true)), compression);
+    }
+
+    private BatchFileWriter(CountingOutputStream countingStream, Compression compression) throws IOException {
+        this(new BufferedWriter(new OutputStreamWriter(compression.wrap(countingStream))), countingStream);
     }
 
     BatchFileWriter(BufferedWriter writer) {
-        bufferedWriter = writer;
+        this(writer, null);
+    }
+
+    private BatchFileWriter(BufferedWriter writer, CountingOutputStream countingStream) {
+        this.bufferedWriter = writer;
+        this.countingStream = countingStream;
+    }
+
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
+    public static FileBatchHandlerFactory<String> factory() {
+        return factory(Compression.none());
+    }
+
+    public static FileBatchHandlerFactory<String> factory(final Compression compression) {
+        return new FileBatchHandlerFactory<String>() {
+            @Override
+            public FileBatchHandler<String> open(String fileName) throws IOException {
+                return new BatchFileWriter(fileName, compression);
+            }
+
+            @Override
+            public Compression getCompression() {
+                return compression;
+            }
+        };
+    }
+
+    /**
+     * bytes that made it out of the write buffer so far
+     */
+    @Override
+    public long getBytesWritten() {
+        return countingStream == null ? 0 : countingStream.getCount();
     }
 
     @Override
@@ -33,9 +86,18 @@ public class BatchFileWriter implements BatchHandler<String> {
                 LOGGER.error("write failed", e);
             }
         }
+        reportBytes();
         return true;
     }
 
+    private void reportBytes() {
+        long bytes = getBytesWritten();
+        if (bytes > reportedBytes) {
+            metrics.bytesWritten(bytes - reportedBytes);
+            reportedBytes = bytes;
+        }
+    }
+
     @Override
     public void done() {
         try {
@@ -43,5 +105,6 @@ public class BatchFileWriter implements BatchHandler<String> {
         } catch (IOException e) {
             LOGGER.error("close failed", e);
         }
+        reportBytes();
     }
 }
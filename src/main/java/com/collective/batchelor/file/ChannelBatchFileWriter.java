@@ -0,0 +1,240 @@
+package com.collective.batchelor.file;
+
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Newline separated file writer on a {@link FileChannel}. Batches are encoded with an explicit charset into
+ * reused direct buffers and written with a single gathering write, durability is chosen by the {@link SyncPolicy}.
+ */
+public class ChannelBatchFileWriter implements FileBatchHandler<String> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChannelBatchFileWriter.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // forces group commit writers in the background, so the loss window also holds while idle
+    private static final ScheduledExecutorService FORCER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("channelFileForcer-%d").build());
+
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final SyncPolicy syncPolicy;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private final ScheduledFuture<?> groupCommit;
+    private ByteBuffer[] bufferArray = new ByteBuffer[0];
+    private int usedBuffers;
+    // batch whose bytes are still in the buffers after a failed write or force
+    private List<String> failedBatch;
+    private CharBuffer chars = CharBuffer.allocate(1024);
+    private volatile boolean dirty;
+    // guarded by this, set once the channel is closed
+    private boolean closed;
+    private long bytesWritten;
+    private BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+
+    public ChannelBatchFileWriter(String fileName) throws IOException {
+        this(fileName, Charsets.UTF_8, SyncPolicy.flushPerBatch());
+    }
+
+    public ChannelBatchFileWriter(String fileName, Charset charset, SyncPolicy syncPolicy) throws IOException {
+        this(FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND), charset, syncPolicy);
+    }
+
+    ChannelBatchFileWriter(FileChannel channel, Charset charset, SyncPolicy syncPolicy) {
+        this.channel = channel;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.syncPolicy = Preconditions.checkNotNull(syncPolicy);
+        if (syncPolicy.mode == SyncPolicy.Mode.GROUP_COMMIT) {
+            groupCommit = FORCER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    forceIfDirty();
+                }
+            }, syncPolicy.intervalMillis, syncPolicy.intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            groupCommit = null;
+        }
+    }
+
+    public static FileBatchHandlerFactory<String> factory(final Charset charset, final SyncPolicy syncPolicy) {
+        return new FileBatchHandlerFactory<String>() {
+            @Override
+            public FileBatchHandler<String> open(String fileName) throws IOException {
+                return new ChannelBatchFileWriter(fileName, charset, syncPolicy);
+            }
+
+            @Override
+            public Compression getCompression() {
+                return Compression.none();
+            }
+        };
+    }
+
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * After a failed write or force the encoded bytes are kept and false is returned. A retry of the same batch only
+     * writes what is left, any other batch is appended after it.
+     */
+    @Override
+    public boolean handle(List<String> messages) {
+        if (failedBatch == null || !failedBatch.equals(messages)) {
+            for (String message : messages) {
+                encode(message);
+            }
+        }
+        failedBatch = null;
+        try {
+            if (syncPolicy.mode != SyncPolicy.Mode.NONE || usedBuffers > 1) {
+                writeBuffers();
+            }
+            if (syncPolicy.mode == SyncPolicy.Mode.FORCE) {
+                channel.force(false);
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("write failed", e);
+            failedBatch = ImmutableList.copyOf(messages);
+            return false;
+        }
+    }
+
+    private void encode(String message) {
+        int length = message.length() + 1;
+        if (chars.capacity() < length) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        chars.clear();
+        message.getChars(0, message.length(), chars.array(), 0);
+        chars.array()[length - 1] = '\n';
+        chars.limit(length);
+
+        encoder.reset();
+        ByteBuffer buffer = currentBuffer();
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isOverflow()) {
+                buffer = nextBuffer();
+                continue;
+            }
+            if (encoder.flush(buffer).isOverflow()) {
+                buffer = nextBuffer();
+                continue;
+            }
+            break;
+        }
+    }
+
+    private ByteBuffer currentBuffer() {
+        if (usedBuffers == 0) {
+            return nextBuffer();
+        }
+        return buffers.get(usedBuffers - 1);
+    }
+
+    private ByteBuffer nextBuffer() {
+        if (usedBuffers == buffers.size()) {
+            buffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        ByteBuffer buffer = buffers.get(usedBuffers++);
+        buffer.clear();
+        return buffer;
+    }
+
+    private void writeBuffers() throws IOException {
+        if (usedBuffers == 0)
+            return;
+        if (bufferArray.length < usedBuffers) {
+            bufferArray = buffers.toArray(new ByteBuffer[buffers.size()]);
+        }
+        long remaining = 0;
+        for (int i = 0; i < usedBuffers; i++) {
+            bufferArray[i].flip();
+            remaining += bufferArray[i].remaining();
+        }
+        long written = 0;
+        try {
+            while (written < remaining) {
+                written += channel.write(bufferArray, 0, usedBuffers);
+            }
+            usedBuffers = 0;
+        } finally {
+            if (usedBuffers > 0) {
+                // keep what was not written for the next attempt
+                for (int i = 0; i < usedBuffers; i++) {
+                    bufferArray[i].compact();
+                }
+            }
+            bytesWritten += written;
+            metrics.bytesWritten(written);
+            dirty = true;
+        }
+    }
+
+    private synchronized void forceIfDirty() {
+        if (!dirty || closed)
+            return;
+        dirty = false;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            LOGGER.error("force failed", e);
+        }
+    }
+
+    @Override
+    public void done() {
+        if (groupCommit != null) {
+            // a running force finishes before the channel is closed below
+            groupCommit.cancel(false);
+        }
+        try {
+            writeBuffers();
+            if (syncPolicy.mode != SyncPolicy.Mode.NONE) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            LOGGER.error("write failed", e);
+        }
+        synchronized (this) {
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.error("close failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.collective.batchelor.file;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of written files. Only gzip is offered, it needs no extra dependency and can be read with standard
+ * tools - appending to an existing file adds a new gzip member, which zcat and GZIPInputStream read just fine.
+ */
+public final class Compression {
+
+    private static final Compression NONE = new Compression(-1);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int level;
+
+    private Compression(int level) {
+        this.level = level;
+    }
+
+    public static Compression none() {
+        return NONE;
+    }
+
+    public static Compression gzip() {
+        return gzip(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level 1 (fastest) to 9 (smallest)
+     */
+    public static Compression gzip(int level) {
+        Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= 1 && level <= 9), "gzip level must be between 1 and 9");
+        return new Compression(level);
+    }
+
+    public boolean isCompressed() {
+        return this != NONE;
+    }
+
+    /**
+     * file name suffix, empty if not compressed
+     */
+    public String suffix() {
+        return isCompressed() ? ".gz" : "";
+    }
+
+    OutputStream wrap(OutputStream out) throws IOException {
+        if (!isCompressed())
+            return out;
+        return new GZIPOutputStream(out, BUFFER_SIZE) {
+            {
+                def.setLevel(level);
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return isCompressed() ? "gzip(" + level + ")" : "none";
+    }
+}
@@ -0,0 +1,10 @@
+package com.collective.batchelor.file;
+
+import com.collective.batchelor.util.BatchHandler;
+
+/**
+ * A handler writing to a single file.
+ */
+public interface FileBatchHandler<T> extends BatchHandler<T> {
+    long getBytesWritten();
+}
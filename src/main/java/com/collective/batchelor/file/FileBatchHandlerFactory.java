@@ -0,0 +1,15 @@
+package com.collective.batchelor.file;
+
+import java.io.IOException;
+
+/**
+ * Opens the handler for each new file of a {@link RollingBatchFileWriter}.
+ */
+public interface FileBatchHandlerFactory<T> {
+    FileBatchHandler<T> open(String fileName) throws IOException;
+
+    /**
+     * how the handlers compress while writing, the rolled file names get its suffix
+     */
+    Compression getCompression();
+}
@@ -0,0 +1,417 @@
+package com.collective.batchelor.file;
+
+import com.collective.batchelor.util.BatchHandler;
+import com.collective.batchelor.util.RetryPolicy;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Hands the lines of the files a {@link RollingBatchFileWriter} wrote for a time range to a handler again, e.g.
+ * to a FlumeBatchHandler behind an EncodingBatchHandler after an outage. Files are read in parallel, plain files
+ * memory mapped and <code>.gz</code> files streamed. The lines of a file are handed over in order, the files are not.
+ * Calls to the handler are serialized, so it needn't be thread safe. With a checkpoint file an interrupted replay
+ * resumes after the last handled batch of every file. Only replay hours the writer is done with, a file that is
+ * still written or compressed is read as far as it got.
+ */
+public class RolledFileReplayer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RolledFileReplayer.class);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final String GZIP_SUFFIX = Compression.gzip().suffix();
+    private static final String DONE = "done";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final Pattern fileNames;
+    private final BatchHandler<String> handler;
+    private final int batchSize;
+    private final Object handlerLock = new Object();
+    private final Properties checkpoints = new Properties();
+    private final AtomicLong replayed = new AtomicLong();
+    private File checkpointFile;
+    private Charset charset = Charsets.UTF_8;
+    private int threads = 1;
+    private RateLimiter rateLimiter;
+    private RetryPolicy retryPolicy = RetryPolicy.fixed(1000);
+    // bytes of a plain file mapped at once, grows for longer lines
+    int mappedBytes = 64 * 1024 * 1024;
+
+    /**
+     * @param basePath as given to the {@link RollingBatchFileWriter}
+     */
+    public RolledFileReplayer(String basePath, BatchHandler<String> handler, int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batch size must be > 0");
+        this.handler = Preconditions.checkNotNull(handler);
+        this.batchSize = batchSize;
+        String prefix = basePath;
+        String suffix = "";
+        // the same split as RollingFileBatchHandler.createFileName
+        if (basePath.contains(".")) {
+            int endIndex = basePath.lastIndexOf(".");
+            prefix = basePath.substring(0, endIndex);
+            suffix = basePath.substring(endIndex);
+        }
+        File base = new File(prefix);
+        this.directory = base.getAbsoluteFile().getParentFile();
+        this.fileNames = Pattern.compile(Pattern.quote(base.getName() + "-") + "(\\d{4}-\\d{2}-\\d{2}T\\d{2})(?:-(\\d+))?"
+                + Pattern.quote(suffix) + "(" + Pattern.quote(GZIP_SUFFIX) + ")?");
+    }
+
+    public void setThreads(int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be > 0");
+        this.threads = threads;
+    }
+
+    /**
+     * limits the lines handed to the handler per second, over all threads
+     */
+    public void setEventsPerSecond(double eventsPerSecond) {
+        this.rateLimiter = RateLimiter.create(eventsPerSecond);
+    }
+
+    /**
+     * how long to wait before handing a refused batch over again
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy);
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = Preconditions.checkNotNull(charset);
+    }
+
+    /**
+     * Keeps the offset of every file up to which its lines were handled in <code>checkpointFile</code>, an existing
+     * checkpoint file is loaded. The offset is stored with the length the file had, a file that got shorter since is
+     * replayed from the start. A plain file compressed in between is replayed again from the start of the
+     * compressed file, which may hold an earlier part of the hour too.
+     */
+    public void setCheckpointFile(File checkpointFile) throws IOException {
+        this.checkpointFile = checkpointFile;
+        checkpoints.clear();
+        if (checkpointFile.exists()) {
+            try (InputStream in = new FileInputStream(checkpointFile)) {
+                checkpoints.load(in);
+            }
+        }
+    }
+
+    /**
+     * lines handed to the handler so far
+     */
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    /**
+     * @return the files written from <code>fromMillis</code> (inclusive) to <code>toMillis</code> (exclusive), in
+     * the order they were written
+     */
+    public List<File> findFiles(long fromMillis, long toMillis) {
+        File[] candidates = directory.listFiles();
+        if (candidates == null)
+            return Collections.emptyList();
+        List<RolledFile> rolled = Lists.newArrayList();
+        for (File file : candidates) {
+            Matcher matcher = fileNames.matcher(file.getName());
+            if (!matcher.matches() || !file.isFile())
+                continue;
+            long hour = RollingFileBatchHandler.dateFormatter.parseMillis(matcher.group(1));
+            if (hour + HOUR > fromMillis && hour < toMillis) {
+                rolled.add(new RolledFile(file, hour, matcher.group(2) == null ? 0 : Integer.parseInt(matcher.group(2))));
+            }
+        }
+        RolledFile[] sorted = rolled.toArray(new RolledFile[rolled.size()]);
+        Arrays.sort(sorted);
+        List<File> files = Lists.newArrayListWithCapacity(sorted.length);
+        for (RolledFile file : sorted) {
+            files.add(file.file);
+        }
+        return files;
+    }
+
+    /**
+     * Replays the files of the time range, skipping what the checkpoint file says was handled before. Returns once
+     * all files were handled, or with the first failure.
+     *
+     * @return lines handed to the handler
+     */
+    public long replay(long fromMillis, long toMillis) throws IOException, InterruptedException {
+        long before = replayed.get();
+        ExecutorService readers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rolledFileReplayer-%d").build());
+        try {
+            List<Future<Void>> pending = Lists.newArrayList();
+            for (final File file : findFiles(fromMillis, toMillis)) {
+                if (isDone(file))
+                    continue;
+                pending.add(readers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        replay(file);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                    Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+        return replayed.get() - before;
+    }
+
+    private void replay(File file) throws IOException, InterruptedException {
+        String key = file.getName();
+        long length = file.length();
+        long offset = 0;
+        String[] checkpoint = loadCheckpoint(key);
+        if (checkpoint != null) {
+            // [done,]offset,length - the offset only holds as long as the file was appended to at most
+            long checkpointLength = Long.parseLong(checkpoint[checkpoint.length - 1]);
+            if (length >= checkpointLength) {
+                offset = Long.parseLong(checkpoint[checkpoint.length - 2]);
+            } else {
+                LOGGER.warn("{} is shorter than at the checkpoint, replaying it from the start", file);
+            }
+        }
+        LOGGER.info("replaying {} from offset {}", file, offset);
+        LineBatch batch = new LineBatch(key, length, offset);
+        if (file.getName().endsWith(GZIP_SUFFIX)) {
+            scanCompressed(file, offset, batch);
+        } else {
+            scanMapped(file, offset, batch);
+        }
+        batch.ship();
+        checkpoint(key, DONE + "," + batch.endOffset + "," + length);
+    }
+
+    private boolean isDone(File file) {
+        String[] checkpoint = loadCheckpoint(file.getName());
+        return checkpoint != null && DONE.equals(checkpoint[0]) && Long.parseLong(checkpoint[2]) == file.length();
+    }
+
+    private String[] loadCheckpoint(String key) {
+        synchronized (checkpoints) {
+            String value = checkpoints.getProperty(key);
+            return value == null ? null : value.split(",");
+        }
+    }
+
+    private void scanMapped(File file, long offset, LineBatch batch) throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = offset;
+            int window = mappedBytes;
+            while (position < size) {
+                int length = (int) Math.min(window, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (buffer.get(i) == '\n') {
+                        batch.line(buffer, lineStart, i, position + i + 1);
+                        lineStart = i + 1;
+                    }
+                }
+                if (position + length == size) {
+                    if (lineStart < length) {
+                        // the last line has no line break
+                        batch.line(buffer, lineStart, length, size);
+                    }
+                    return;
+                }
+                if (lineStart == 0) {
+                    // a line longer than the window
+                    window = (int) Math.min(Integer.MAX_VALUE, 2L * window);
+                }
+                position += lineStart;
+            }
+        }
+    }
+
+    private void scanCompressed(File file, long offset, LineBatch batch) throws IOException, InterruptedException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            ByteStreams.skipFully(in, offset);
+            byte[] chunk = new byte[BUFFER_SIZE];
+            long position = offset;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                int lineStart = 0;
+                for (int i = 0; i < read; i++) {
+                    if (chunk[i] == '\n') {
+                        batch.line(chunk, lineStart, i, position + i + 1);
+                        lineStart = i + 1;
+                    }
+                }
+                batch.partial(chunk, lineStart, read);
+                position += read;
+            }
+            batch.lastLine(position);
+        }
+    }
+
+    private void checkpoint(String key, String value) throws IOException {
+        if (checkpointFile == null)
+            return;
+        synchronized (checkpoints) {
+            checkpoints.setProperty(key, value);
+            // replace the whole file, a crash leaves either the old or the new checkpoints
+            File temp = new File(checkpointFile.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                checkpoints.store(out, "offsets of replayed rolled files");
+            }
+            Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * the lines of one file not handed over yet, only used by the thread reading the file
+     */
+    private final class LineBatch {
+        private final String key;
+        // of the file when the replay started
+        private final long fileLength;
+        private final List<String> lines = Lists.newArrayListWithCapacity(batchSize);
+        // bytes of a line that continues in the next chunk, or copied out of a mapped buffer
+        private byte[] pending = new byte[256];
+        private int pendingLength;
+        private long endOffset;
+
+        private LineBatch(String key, long fileLength, long offset) {
+            this.key = key;
+            this.fileLength = fileLength;
+            this.endOffset = offset;
+        }
+
+        private void line(byte[] bytes, int from, int to, long end) throws IOException, InterruptedException {
+            if (pendingLength == 0) {
+                add(new String(bytes, from, to - from, charset), end);
+            } else {
+                partial(bytes, from, to);
+                lastLine(end);
+            }
+        }
+
+        private void line(ByteBuffer buffer, int from, int to, long end) throws IOException, InterruptedException {
+            int length = to - from;
+            ensureCapacity(length);
+            buffer.position(from);
+            buffer.get(pending, 0, length);
+            add(new String(pending, 0, length, charset), end);
+        }
+
+        private void partial(byte[] bytes, int from, int to) {
+            ensureCapacity(pendingLength + to - from);
+            System.arraycopy(bytes, from, pending, pendingLength, to - from);
+            pendingLength += to - from;
+        }
+
+        private void lastLine(long end) throws IOException, InterruptedException {
+            if (pendingLength > 0) {
+                String line = new String(pending, 0, pendingLength, charset);
+                pendingLength = 0;
+                add(line, end);
+            }
+        }
+
+        private void ensureCapacity(int length) {
+            if (pending.length < length) {
+                pending = Arrays.copyOf(pending, Math.max(length, 2 * pending.length));
+            }
+        }
+
+        private void add(String line, long end) throws IOException, InterruptedException {
+            lines.add(line);
+            endOffset = end;
+            if (lines.size() >= batchSize) {
+                ship();
+            }
+        }
+
+        private void ship() throws IOException, InterruptedException {
+            if (lines.isEmpty())
+                return;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            RateLimiter limiter = rateLimiter;
+            if (limiter != null) {
+                limiter.acquire(lines.size());
+            }
+            synchronized (handlerLock) {
+                int attempt = 0;
+                while (!handler.handle(lines)) {
+                    attempt++;
+                    LOGGER.warn("{} failed to handle replayed batch of {}, attempt {}", handler.getClass().getSimpleName(), key, attempt);
+                    Thread.sleep(retryPolicy.delayMillis(attempt));
+                }
+                replayed.addAndGet(lines.size());
+                checkpoint(key, endOffset + "," + fileLength);
+            }
+            lines.clear();
+        }
+    }
+
+    private static final class RolledFile implements Comparable<RolledFile> {
+        final File file;
+        final long hour;
+        final int index;
+
+        RolledFile(File file, long hour, int index) {
+            this.file = file;
+            this.hour = hour;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(RolledFile other) {
+            if (hour != other.hour)
+                return hour < other.hour ? -1 : 1;
+            if (index != other.index)
+                return index < other.index ? -1 : 1;
+            // the compressed part was written before a restart continued the plain file
+            return other.file.getName().compareTo(file.getName());
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.collective.batchelor.file;
+
+
+import com.collective.batchelor.util.BatchHandler;
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes to a new file every hour, opened by a {@link FileBatchHandlerFactory}. See {@link RollingBatchFileWriter}
+ * for text files and {@link AvroBatchFileWriter#rolling} for Avro container files.
+ */
+public class RollingFileBatchHandler<T> implements BatchHandler<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RollingFileBatchHandler.class);
+    static final DateTimeFormatter dateFormatter = ISODateTimeFormat.dateHour().withZoneUTC();
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    // closing (flushing) the previous file is done off the worker thread, shared by all writers
+    private static final ExecutorService CLOSER = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rollingFileCloser-%d").build());
+
+    private final String basePath;
+    private final long maxBytes;
+    private final FileBatchHandlerFactory<T> handlerFactory;
+    private FileBatchHandler<T> batchFileWriter;
+    private Future<?> pendingClose;
+    private volatile Compression compressOnRoll = Compression.none();
+    // rollover happens when the clock leaves [currentHour, nextRollover)
+    private long currentHour;
+    private long nextRollover = Long.MIN_VALUE;
+    private int index;
+    private long initialBytes;
+    String currentFile;
+
+    /**
+     * @param maxBytes       also start a new file within the hour once this many bytes were written, 0 for no limit.
+     *                       Files of the same hour get an index: <code>base-2013-08-13T15-1.log</code>
+     * @param handlerFactory opens the writer for every new file
+     */
+    public RollingFileBatchHandler(String basePath, long maxBytes, FileBatchHandlerFactory<T> handlerFactory) {
+        this.basePath = basePath;
+        this.maxBytes = maxBytes;
+        this.handlerFactory = handlerFactory;
+    }
+
+    /**
+     * Compress every file in the background once the writer moved on to the next one, the compressed file gets
+     * a <code>.gz</code> suffix and the original is deleted. The file that is open when {@link #done()} is
+     * called is left alone, as it might be continued after a restart. Can't be combined with a handler factory
+     * that compresses while writing.
+     */
+    public void setCompressOnRoll(Compression compression) {
+        Preconditions.checkNotNull(compression);
+        Preconditions.checkArgument(!compression.isCompressed() || !handlerFactory.getCompression().isCompressed(),
+                "files are compressed while writing already");
+        this.compressOnRoll = compression;
+    }
+
+    @Override
+    public boolean handle(List<T> messages) {
+        try {
+            createWriter();
+        } catch (IOException e) {
+            LOGGER.error("opening the next file failed", e);
+            return false;
+        }
+        return batchFileWriter.handle(messages);
+    }
+
+    private void createWriter() throws IOException {
+        long now = DateTimeUtils.currentTimeMillis();
+        if (batchFileWriter == null || now >= nextRollover || now < currentHour) {
+            openWriter(now - (now % HOUR), 0);
+        } else if (maxBytes > 0 && initialBytes + batchFileWriter.getBytesWritten() >= maxBytes) {
+            openWriter(currentHour, index + 1);
+        }
+    }
+
+    /**
+     * Opens the new file before touching the current one, if that fails the rollover state is left as it was and
+     * the next call tries again.
+     */
+    private void openWriter(long hour, int fileIndex) throws IOException {
+        String newPath = createFileName(hour, fileIndex);
+        // after a restart, skip the files of this hour that are full already
+        while (maxBytes > 0 && new File(newPath).length() >= maxBytes) {
+            newPath = createFileName(hour, ++fileIndex);
+        }
+        long bytes = new File(newPath).length();
+        FileBatchHandler<T> writer = handlerFactory.open(newPath);
+        closeAsync(batchFileWriter, currentFile);
+        batchFileWriter = writer;
+        currentFile = newPath;
+        initialBytes = bytes;
+        currentHour = hour;
+        nextRollover = hour + HOUR;
+        index = fileIndex;
+    }
+
+    private void closeAsync(final FileBatchHandler<T> writer, final String fileName) {
+        if (writer == null)
+            return;
+        final Compression compression = compressOnRoll;
+        pendingClose = CLOSER.submit(new Runnable() {
+            @Override
+            public void run() {
+                writer.done();
+                if (compression.isCompressed()) {
+                    compress(new File(fileName), compression);
+                }
+            }
+        });
+    }
+
+    static void compress(File file, Compression compression) {
+        File target = new File(file.getPath() + compression.suffix());
+        // append, so a file that was compressed before a restart gets a second gzip member
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = compression.wrap(new FileOutputStream(target, true))) {
+            ByteStreams.copy(in, out);
+        } catch (IOException e) {
+            LOGGER.error("compressing " + file + " failed", e);
+            return;
+        }
+        if (!file.delete()) {
+            LOGGER.warn("can't delete {} after compressing it", file);
+        }
+    }
+
+    String createFileName() {
+        return createFileName(DateTimeUtils.currentTimeMillis(), 0);
+    }
+
+    String createFileName(long millis, int index) {
+        String timestamp = dateFormatter.print(millis);
+        if (index > 0) {
+            timestamp = timestamp + "-" + index;
+        }
+        if (basePath.contains(".")) {
+            int endIndex = basePath.lastIndexOf(".");
+            String fileName = basePath.substring(0, endIndex);
+            String suffix = basePath.substring(endIndex + 1, basePath.length());
+            return fileName + "-" + timestamp + "." + suffix + handlerFactory.getCompression().suffix();
+        }
+        return basePath + "-" + timestamp + handlerFactory.getCompression().suffix();
+    }
+
+    @Override
+    public void done() {
+        if (pendingClose != null) {
+            try {
+                pendingClose.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.error("close failed", e);
+            }
+        }
+        if (batchFileWriter != null)
+            batchFileWriter.done();
+    }
+}
@@ -0,0 +1,60 @@
+package com.collective.batchelor.file;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * When a {@link ChannelBatchFileWriter} hands data to the OS and forces it to disk.
+ */
+public final class SyncPolicy {
+
+    enum Mode {
+        NONE, FLUSH, FORCE, GROUP_COMMIT
+    }
+
+    private static final SyncPolicy NONE = new SyncPolicy(Mode.NONE, 0);
+    private static final SyncPolicy FLUSH = new SyncPolicy(Mode.FLUSH, 0);
+    private static final SyncPolicy FORCE = new SyncPolicy(Mode.FORCE, 0);
+
+    final Mode mode;
+    final long intervalMillis;
+
+    private SyncPolicy(Mode mode, long intervalMillis) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * keep data in the write buffers until they are full - everything buffered is lost if the process dies
+     */
+    public static SyncPolicy none() {
+        return NONE;
+    }
+
+    /**
+     * write every batch to the file - survives the process dying, not the machine
+     */
+    public static SyncPolicy flushPerBatch() {
+        return FLUSH;
+    }
+
+    /**
+     * write every batch and force it to disk before handle() returns
+     */
+    public static SyncPolicy forcePerBatch() {
+        return FORCE;
+    }
+
+    /**
+     * write every batch and force to disk at most every <code>intervalMillis</code>, so at most that
+     * much data is lost if the machine dies
+     */
+    public static SyncPolicy groupCommit(long intervalMillis) {
+        Preconditions.checkArgument(intervalMillis > 0, "interval must be > 0");
+        return new SyncPolicy(Mode.GROUP_COMMIT, intervalMillis);
+    }
+
+    @Override
+    public String toString() {
+        return mode == Mode.GROUP_COMMIT ? mode + "(" + intervalMillis + "ms)" : mode.toString();
+    }
+}
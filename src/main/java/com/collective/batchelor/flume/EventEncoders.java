@@ -0,0 +1,69 @@
+package com.collective.batchelor.flume;
+
+import com.collective.batchelor.util.Encoder;
+import com.google.common.base.Preconditions;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/**
+ * {@link Encoder}s building flume events on the worker thread of an
+ * {@link com.collective.batchelor.util.AsyncBatchExecutor}. They keep scratch buffers, so use one instance per worker.
+ */
+public final class EventEncoders {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private EventEncoders() {
+    }
+
+    /**
+     * event with the string as body, unmappable characters are replaced
+     */
+    public static Encoder<String, Event> strings(Charset charset) {
+        return new StringEventEncoder(charset);
+    }
+
+    static class StringEventEncoder implements Encoder<String, Event> {
+        private final CharsetEncoder charsetEncoder;
+        private ByteBuffer scratch = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        StringEventEncoder(Charset charset) {
+            this.charsetEncoder = Preconditions.checkNotNull(charset).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public Event encode(String event) {
+            int maxBytes = (int) Math.ceil(event.length() * (double) charsetEncoder.maxBytesPerChar());
+            if (scratch.capacity() < maxBytes) {
+                scratch = ByteBuffer.allocate(maxBytes);
+            }
+            scratch.clear();
+            charsetEncoder.reset();
+            CharBuffer chars = CharBuffer.wrap(event);
+            try {
+                throwIfError(charsetEncoder.encode(chars, scratch, true));
+                throwIfError(charsetEncoder.flush(scratch));
+            } catch (CharacterCodingException e) {
+                throw new IllegalArgumentException("cannot encode event", e);
+            }
+            return EventBuilder.withBody(Arrays.copyOf(scratch.array(), scratch.position()));
+        }
+
+        private static void throwIfError(CoderResult result) throws CharacterCodingException {
+            if (result.isError() || result.isOverflow()) {
+                result.throwException();
+            }
+        }
+    }
+}
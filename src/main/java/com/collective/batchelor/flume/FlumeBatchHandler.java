@@ -1,7 +1,10 @@
 package com.collective.batchelor.flume;
 
 
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
 import com.collective.batchelor.util.BatchHandler;
+import com.google.common.base.Preconditions;
 import org.apache.flume.Event;
 import org.apache.flume.api.RpcClient;
 import org.apache.flume.api.RpcClientFactory;
@@ -14,6 +17,7 @@ public class FlumeBatchHandler implements BatchHandler<Event> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FlumeBatchHandler.class);
     RpcClient rpcClient = null;
+    private BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
 
     private final int batchSize;
     private final String host;
@@ -25,6 +29,10 @@ public class FlumeBatchHandler implements BatchHandler<Event> {
         this.port = port;
     }
 
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
     @Override
     public boolean handle(List<Event> batch) {
         try {
@@ -34,9 +42,21 @@ public class FlumeBatchHandler implements BatchHandler<Event> {
             resetRpcClient();
             return false;
         }
+        metrics.bytesWritten(bodyBytes(batch));
         return true;
     }
 
+    static long bodyBytes(List<Event> batch) {
+        long bytes = 0;
+        for (Event event : batch) {
+            byte[] body = event.getBody();
+            if (body != null) {
+                bytes += body.length;
+            }
+        }
+        return bytes;
+    }
+
     @Override
     public void done() {
         if (rpcClient != null) {
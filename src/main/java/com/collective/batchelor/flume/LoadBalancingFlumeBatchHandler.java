@@ -0,0 +1,463 @@
+package com.collective.batchelor.flume;
+
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.collective.batchelor.util.BatchHandler;
+import com.collective.batchelor.util.FlushableBatchHandler;
+import com.collective.batchelor.util.RetryPolicy;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.api.RpcClient;
+import org.apache.flume.api.RpcClientFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends batches to several flume agents, keeping up to <code>maxInFlight</code> batches on the wire at once.
+ * <p/>
+ * handle() hands the batch to a sender thread and returns before an agent acknowledged it. It blocks while
+ * <code>maxInFlight</code> batches are outstanding and returns false while all agents are down.
+ * {@link #flushAsync()} completes once the accepted batches were delivered or given up, the executor waits for it
+ * on flush and stop. A sender fails over to the next agent when an agent can't be reached, such agents are taken
+ * out of the rotation and health checked in the background. A batch an agent rejects is retried without taking the
+ * agent out. After <code>maxAttempts</code> the batch is given up: it goes to the fallback handler, what that refuses
+ * is kept for {@link #takeUndelivered()} up to <code>maxUndelivered</code> events and dropped beyond that. Batches
+ * in flight may arrive out of order.
+ */
+public class LoadBalancingFlumeBatchHandler implements FlushableBatchHandler<Event> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancingFlumeBatchHandler.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    public enum Selection {
+        ROUND_ROBIN, RANDOM
+    }
+
+    static class Agent {
+        final HostAndPort address;
+        volatile RpcClient rpcClient;
+        volatile boolean healthy = true;
+
+        Agent(HostAndPort address) {
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return address.toString();
+        }
+    }
+
+    private enum Result {
+        DELIVERED, AGENT_DOWN, REJECTED
+    }
+
+    private static final class InFlightBatch {
+        final List<Event> events;
+        final SettableFuture<Void> settled = SettableFuture.create();
+
+        InFlightBatch(List<Event> events) {
+            this.events = events;
+        }
+    }
+
+    private final List<Agent> agents;
+    private final int batchSize;
+    private final Selection selection;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService healthChecker;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long closeTimeoutMillis;
+    // batches accepted and neither delivered nor given up yet
+    private final Set<InFlightBatch> outstanding = Collections.newSetFromMap(new ConcurrentHashMap<InFlightBatch, Boolean>());
+    private final Queue<List<Event>> undelivered = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger undeliveredEvents = new AtomicInteger();
+    private final AtomicLong givenUp = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final BatchHandler<Event> fallbackHandler;
+    private volatile int maxAttempts = 10;
+    private volatile int maxUndelivered = 10000;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.exponentialBackoff(100, 30000, 0.2);
+    private volatile BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+    private volatile boolean closed;
+
+    /**
+     * @param agents          "host:port" of every agent
+     * @param fallbackHandler gets the batches given up, and those still in flight when done() times out. Calls are
+     *                        serialized, but come from the sender threads. done() calls done() on it.
+     */
+    public LoadBalancingFlumeBatchHandler(List<String> agents, int batchSize, Selection selection, int maxInFlight, long healthCheckIntervalMillis, long closeTimeoutMillis,
+                                          BatchHandler<Event> fallbackHandler) {
+        Preconditions.checkArgument(!agents.isEmpty(), "at least one agent is needed");
+        Preconditions.checkArgument(maxInFlight > 0, "max in flight must be > 0");
+        ImmutableList.Builder<Agent> builder = ImmutableList.builder();
+        for (String agent : agents) {
+            builder.add(new Agent(HostAndPort.fromString(agent).requireBracketsForIPv6()));
+        }
+        this.agents = builder.build();
+        this.batchSize = batchSize;
+        this.selection = Preconditions.checkNotNull(selection);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.closeTimeoutMillis = closeTimeoutMillis;
+        this.fallbackHandler = Preconditions.checkNotNull(fallbackHandler, "a fallback handler is needed");
+        int id = THREAD_COUNTER.incrementAndGet();
+        this.senders = Executors.newFixedThreadPool(maxInFlight,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flumeSender-" + id + "-%d").build());
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("flumeHealthCheck-" + id).build());
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkAgents();
+            }
+        }, healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy);
+    }
+
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
+    /**
+     * attempts per batch, counting failed sends and waits while all agents are down, before it is given up
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        Preconditions.checkArgument(maxAttempts > 0, "max attempts must be > 0");
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * events kept for {@link #takeUndelivered()} when the fallback handler refuses them, more are dropped
+     */
+    public void setMaxUndelivered(int maxUndelivered) {
+        Preconditions.checkArgument(maxUndelivered >= 0, "max undelivered must be >= 0");
+        this.maxUndelivered = maxUndelivered;
+    }
+
+    public BatchHandler<Event> getFallbackHandler() {
+        return fallbackHandler;
+    }
+
+    /**
+     * removes and returns the events given up that the fallback handler refused
+     */
+    public List<Event> takeUndelivered() {
+        List<Event> events = Lists.newArrayList();
+        List<Event> batch;
+        while ((batch = undelivered.poll()) != null) {
+            undeliveredEvents.addAndGet(-batch.size());
+            events.addAll(batch);
+        }
+        return events;
+    }
+
+    /**
+     * events given up that neither the fallback handler nor {@link #takeUndelivered()} had room for
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * events given up so far, whether the fallback handler took them or not
+     */
+    public long getGivenUpCount() {
+        return givenUp.get();
+    }
+
+    public int getHealthyAgents() {
+        int healthy = 0;
+        for (Agent agent : agents) {
+            if (agent.healthy)
+                healthy++;
+        }
+        return healthy;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    @Override
+    public boolean handle(List<Event> batch) {
+        if (closed || getHealthyAgents() == 0)
+            return false;
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        // the caller reuses its list
+        final InFlightBatch inFlightBatch = new InFlightBatch(new ArrayList<>(batch));
+        outstanding.add(inFlightBatch);
+        try {
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(inFlightBatch);
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // done() was called
+            outstanding.remove(inFlightBatch);
+            inFlight.release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * completes when the batches accepted before were delivered or given up
+     */
+    @Override
+    public ListenableFuture<Void> flushAsync() {
+        List<ListenableFuture<Void>> futures = Lists.newArrayList();
+        for (InFlightBatch batch : outstanding) {
+            futures.add(batch.settled);
+        }
+        return Futures.transform(Futures.allAsList(futures), new Function<List<Void>, Void>() {
+            @Override
+            public Void apply(List<Void> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return false if the batches accepted before were not delivered or given up in time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        try {
+            Uninterruptibles.getUninterruptibly(flushAsync(), timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private void send(InFlightBatch batch) {
+        int attempt = 0;
+        while (!closed) {
+            Agent agent = selectAgent();
+            Result result = agent == null ? Result.AGENT_DOWN : sendTo(agent, batch.events);
+            if (result == Result.DELIVERED) {
+                if (settle(batch)) {
+                    metrics.bytesWritten(FlumeBatchHandler.bodyBytes(batch.events));
+                } else {
+                    LOGGER.warn("batch of {} events was delivered after done() gave it up, it may arrive twice", batch.events.size());
+                }
+                return;
+            }
+            if (++attempt >= maxAttempts) {
+                giveUp(batch, attempt + " attempts failed");
+                return;
+            }
+            // fail over right away, but back off while all agents are down or the agent refuses the batch
+            if (agent == null || result == Result.REJECTED) {
+                try {
+                    Thread.sleep(retryPolicy.delayMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        giveUp(batch, "handler was closed");
+    }
+
+    private Result sendTo(Agent agent, List<Event> batch) {
+        try {
+            connect(agent).appendBatch(batch);
+            return Result.DELIVERED;
+        } catch (Exception e) {
+            if (isRejection(e)) {
+                LOGGER.warn("flume agent " + agent + " rejected the batch", e);
+                return Result.REJECTED;
+            }
+            LOGGER.warn("send batch to " + agent + " failed - taking it out of rotation", e);
+            markDown(agent);
+            return Result.AGENT_DOWN;
+        }
+    }
+
+    /**
+     * Flume 1.3 wraps every failure in an EventDeliveryException, only the message tells an agent that answered
+     * with an error status or whose channel threw from one that could not be reached.
+     */
+    static boolean isRejection(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (cause instanceof EventDeliveryException && message != null
+                    && (message.contains("returned Status") || message.contains("remote handler")))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean settle(InFlightBatch batch) {
+        if (!outstanding.remove(batch))
+            return false;
+        batch.settled.set(null);
+        return true;
+    }
+
+    private void giveUp(InFlightBatch batch, String reason) {
+        if (!outstanding.remove(batch))
+            return;
+        try {
+            handOver(batch.events, reason);
+        } finally {
+            batch.settled.set(null);
+        }
+    }
+
+    private void handOver(List<Event> events, String reason) {
+        givenUp.addAndGet(events.size());
+        synchronized (fallbackHandler) {
+            try {
+                if (fallbackHandler.handle(events)) {
+                    LOGGER.warn("handed batch of {} events to fallback handler, {}", events.size(), reason);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.error("fallback handler failed", e);
+            }
+        }
+        if (undeliveredEvents.addAndGet(events.size()) > maxUndelivered) {
+            undeliveredEvents.addAndGet(-events.size());
+            dropped.addAndGet(events.size());
+            metrics.dropped(events.size());
+            LOGGER.error("could not deliver batch of {} events, {} - fallback handler refused it and no room is left, dropping it", events.size(), reason);
+            return;
+        }
+        LOGGER.error("could not deliver batch of {} events, {} - fallback handler refused it, keeping it for takeUndelivered()", events.size(), reason);
+        undelivered.add(events);
+    }
+
+    Agent selectAgent() {
+        int size = agents.size();
+        int start = selection == Selection.RANDOM
+                ? ThreadLocalRandom.current().nextInt(size)
+                : (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int i = 0; i < size; i++) {
+            Agent agent = agents.get((start + i) % size);
+            if (agent.healthy)
+                return agent;
+        }
+        return null;
+    }
+
+    private RpcClient connect(Agent agent) {
+        RpcClient client = agent.rpcClient;
+        if (client != null && client.isActive())
+            return client;
+        synchronized (agent) {
+            client = agent.rpcClient;
+            if (client == null || !client.isActive()) {
+                if (client != null) {
+                    client.close();
+                }
+                client = RpcClientFactory.getDefaultInstance(agent.address.getHostText(), agent.address.getPort(), batchSize);
+                agent.rpcClient = client;
+            }
+            return client;
+        }
+    }
+
+    private void markDown(Agent agent) {
+        synchronized (agent) {
+            agent.healthy = false;
+            if (agent.rpcClient != null) {
+                agent.rpcClient.close();
+                agent.rpcClient = null;
+            }
+        }
+    }
+
+    void checkAgents() {
+        for (Agent agent : agents) {
+            if (agent.healthy)
+                continue;
+            try {
+                if (connect(agent).isActive()) {
+                    LOGGER.info("flume agent {} is back", agent);
+                    agent.healthy = true;
+                }
+            } catch (Exception e) {
+                LOGGER.debug("flume agent {} still down: {}", agent, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Waits up to <code>closeTimeoutMillis</code> for the batches in flight, the rest is given up and handed to the
+     * fallback handler.
+     */
+    @Override
+    public void done() {
+        healthChecker.shutdownNow();
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(closeTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("{} batches still in flight after {}ms", getInFlight(), closeTimeoutMillis);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closed = true;
+        senders.shutdownNow();
+        for (InFlightBatch batch : outstanding) {
+            giveUp(batch, "still in flight after " + closeTimeoutMillis + "ms");
+        }
+        for (Agent agent : agents) {
+            if (agent.rpcClient != null) {
+                agent.rpcClient.close();
+            }
+        }
+        synchronized (fallbackHandler) {
+            fallbackHandler.done();
+        }
+    }
+}
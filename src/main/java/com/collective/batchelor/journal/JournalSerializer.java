@@ -0,0 +1,10 @@
+package com.collective.batchelor.journal;
+
+/**
+ * Turns events into journal records and back.
+ */
+public interface JournalSerializer<T> {
+    byte[] serialize(T event);
+
+    T deserialize(byte[] bytes, int offset, int length);
+}
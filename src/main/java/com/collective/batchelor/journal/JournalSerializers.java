@@ -0,0 +1,25 @@
+package com.collective.batchelor.journal;
+
+import com.google.common.base.Charsets;
+
+public final class JournalSerializers {
+
+    private static final JournalSerializer<String> STRINGS = new JournalSerializer<String>() {
+        @Override
+        public byte[] serialize(String event) {
+            return event.getBytes(Charsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes, int offset, int length) {
+            return new String(bytes, offset, length, Charsets.UTF_8);
+        }
+    };
+
+    private JournalSerializers() {
+    }
+
+    public static JournalSerializer<String> strings() {
+        return STRINGS;
+    }
+}
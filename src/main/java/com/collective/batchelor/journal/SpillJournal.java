@@ -0,0 +1,257 @@
+package com.collective.batchelor.journal;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only journal of memory-mapped segment files for events that can't be kept in memory.
+ * <p/>
+ * Records are read in the order they were appended and stay on disk until {@link #commit()} is called,
+ * so a restarted process picks up everything that was not delivered (at-least-once).
+ * A record is <code>[type byte][int length][payload]</code>, the type byte is written last, so a record
+ * that was only partially written when the process died is never read. An unwritten byte follows every record,
+ * so stale bytes of such a torn record can't be read as a record once shorter ones are appended over it.
+ */
+public class SpillJournal<T> implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpillJournal.class);
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".dat";
+    static final String CHECKPOINT = "checkpoint.dat";
+
+    private static final byte UNWRITTEN = 0;
+    private static final byte RECORD = 1;
+    private static final byte END_OF_SEGMENT = 2;
+    private static final int HEADER = 5;
+
+    private final File directory;
+    private final int segmentSize;
+    private final JournalSerializer<T> serializer;
+    private final MappedByteBuffer checkpoint;
+
+    private int writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private int readSegment;
+    private MappedByteBuffer readBuffer;
+    // cursor after the last read, becomes the checkpoint on commit
+    private int pendingSegment;
+    private int pendingPosition;
+    private long pendingCount;
+    private long size;
+    private byte[] scratch = new byte[256];
+
+    public SpillJournal(File directory, int segmentSize, JournalSerializer<T> serializer) throws IOException {
+        Preconditions.checkArgument(segmentSize > HEADER + 1, "segment size too small");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.serializer = Preconditions.checkNotNull(serializer);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can't create journal directory " + directory);
+        }
+        this.checkpoint = map(new File(directory, CHECKPOINT), 8);
+        long committed = checkpoint.getLong(0);
+        int readPosition = 0;
+        int[] segments = listSegments();
+        if (segments.length == 0) {
+            writeSegment = (int) (committed >>> 32);
+            readSegment = writeSegment;
+        } else {
+            writeSegment = segments[segments.length - 1];
+            readSegment = Math.max((int) (committed >>> 32), segments[0]);
+            if (readSegment == (int) (committed >>> 32)) {
+                readPosition = (int) committed;
+            }
+        }
+        writeBuffer = mapSegment(writeSegment);
+        writeBuffer.position(scanEnd(writeBuffer));
+        clearTail(writeBuffer);
+        readBuffer = readSegment == writeSegment ? writeBuffer : mapSegment(readSegment);
+        pendingSegment = readSegment;
+        pendingPosition = readPosition;
+        size = countRecords(readPosition);
+        if (size > 0) {
+            LOGGER.info("journal {} has {} undelivered events", directory, size);
+        }
+    }
+
+    public synchronized void append(T event) throws IOException {
+        byte[] bytes = serializer.serialize(event);
+        int length = HEADER + bytes.length;
+        // always leave room for the end of segment marker
+        Preconditions.checkArgument(length + 1 <= segmentSize, "event too large for journal segment");
+        int position = writeBuffer.position();
+        if (position + length + 1 > segmentSize) {
+            writeBuffer.put(position, END_OF_SEGMENT);
+            writeSegment++;
+            writeBuffer = mapSegment(writeSegment);
+            position = 0;
+        }
+        writeBuffer.position(position + 1);
+        writeBuffer.putInt(bytes.length);
+        writeBuffer.put(bytes);
+        writeBuffer.put(position + length, UNWRITTEN);
+        writeBuffer.put(position, RECORD);
+        writeBuffer.position(position + length);
+        size++;
+    }
+
+    /**
+     * Reads up to <code>maxEvents</code> events following the previously read ones.
+     * They are read again after a restart until {@link #commit()} is called.
+     */
+    public synchronized int read(List<? super T> target, int maxEvents) throws IOException {
+        int read = 0;
+        while (read < maxEvents) {
+            if (pendingSegment != readSegment) {
+                readSegment = pendingSegment;
+                readBuffer = readSegment == writeSegment ? writeBuffer : mapSegment(readSegment);
+            }
+            byte type = pendingPosition < segmentSize ? readBuffer.get(pendingPosition) : UNWRITTEN;
+            if (type == END_OF_SEGMENT) {
+                pendingSegment++;
+                pendingPosition = 0;
+                continue;
+            }
+            if (type != RECORD)
+                break;
+            int length = readBuffer.getInt(pendingPosition + 1);
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                scratch[i] = readBuffer.get(pendingPosition + HEADER + i);
+            }
+            target.add(serializer.deserialize(scratch, 0, length));
+            pendingPosition += HEADER + length;
+            pendingCount++;
+            read++;
+        }
+        return read;
+    }
+
+    /**
+     * marks everything read so far as delivered and deletes segments that are no longer needed
+     */
+    public synchronized void commit() {
+        int oldSegment = (int) (checkpoint.getLong(0) >>> 32);
+        checkpoint.putLong(0, ((long) pendingSegment << 32) | pendingPosition);
+        size -= pendingCount;
+        pendingCount = 0;
+        for (int segment = oldSegment; segment < pendingSegment; segment++) {
+            File file = segmentFile(segment);
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("can't delete journal segment {}", file);
+            }
+        }
+    }
+
+    /**
+     * events appended but not committed yet
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * true if there is nothing left to read
+     */
+    public synchronized boolean isEmpty() {
+        if (pendingSegment != writeSegment)
+            return false;
+        return pendingPosition >= writeBuffer.position();
+    }
+
+    @Override
+    public synchronized void close() {
+        writeBuffer.force();
+        checkpoint.force();
+    }
+
+    private long countSegment(int segment, int from) {
+        try {
+            MappedByteBuffer buffer = mapSegment(segment);
+            long count = 0;
+            int position = from;
+            while (position < segmentSize && buffer.get(position) == RECORD) {
+                position += HEADER + buffer.getInt(position + 1);
+                count++;
+            }
+            return count;
+        } catch (IOException e) {
+            LOGGER.warn("can't count journal segment " + segment, e);
+            return 0;
+        }
+    }
+
+    private long countRecords(int readPosition) {
+        long count = 0;
+        for (int segment = readSegment; segment <= writeSegment; segment++) {
+            if (segmentFile(segment).exists()) {
+                count += countSegment(segment, segment == readSegment ? readPosition : 0);
+            }
+        }
+        return count;
+    }
+
+    private int scanEnd(MappedByteBuffer buffer) {
+        int position = 0;
+        while (position < segmentSize && buffer.get(position) == RECORD) {
+            position += HEADER + buffer.getInt(position + 1);
+        }
+        return position;
+    }
+
+    /**
+     * Zeroes what a record torn by a crash left after the end, segments written before records were followed by
+     * an unwritten byte rely on it. Only touches non-zero bytes, so the untouched rest of a sparse file stays sparse.
+     */
+    private void clearTail(MappedByteBuffer buffer) {
+        for (int position = buffer.position(); position < segmentSize; position++) {
+            if (buffer.get(position) != UNWRITTEN) {
+                buffer.put(position, UNWRITTEN);
+            }
+        }
+    }
+
+    private int[] listSegments() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        int[] segments = new int[names == null ? 0 : names.length];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = Integer.parseInt(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer mapSegment(int segment) throws IOException {
+        return map(segmentFile(segment), segmentSize);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        // the mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.collective.batchelor.metrics;
+
+/**
+ * Receives measurements from executors and handlers. Implementations are called on hot paths
+ * (<code>enqueued()</code> on every add) and must neither block nor allocate.
+ */
+public interface BatchMetrics {
+
+    void enqueued();
+
+    void dropped(int events);
+
+    void rejected();
+
+    void drainWaited(long nanos);
+
+    void batchHandled(int events, long latencyNanos, boolean success);
+
+    void retried();
+
+    void bytesWritten(long bytes);
+}
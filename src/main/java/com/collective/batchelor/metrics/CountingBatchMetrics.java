@@ -0,0 +1,184 @@
+package com.collective.batchelor.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps counters and histograms in memory and exposes them as a JMX MBean.
+ */
+public class CountingBatchMetrics implements BatchMetrics, CountingBatchMetricsMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CountingBatchMetrics.class);
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong drainWaitNanos = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Histogram batchSizes = new Histogram();
+    private final Histogram handleLatencies = new Histogram();
+
+    // enqueue rate is calculated between two reads
+    private long lastRateNanos = System.nanoTime();
+    private long lastRateCount;
+
+    private ObjectName objectName;
+
+    @Override
+    public void enqueued() {
+        enqueued.incrementAndGet();
+    }
+
+    @Override
+    public void dropped(int events) {
+        dropped.addAndGet(events);
+    }
+
+    @Override
+    public void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    @Override
+    public void drainWaited(long nanos) {
+        drainWaitNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public void batchHandled(int events, long latencyNanos, boolean success) {
+        handleLatencies.record(latencyNanos);
+        if (success) {
+            batchSizes.record(events);
+        } else {
+            failedBatches.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    public Histogram getHandleLatencies() {
+        return handleLatencies;
+    }
+
+    @Override
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    /**
+     * events per second since the previous call
+     */
+    @Override
+    public synchronized double getEnqueueRate() {
+        long now = System.nanoTime();
+        long count = enqueued.get();
+        double rate = (count - lastRateCount) / ((now - lastRateNanos) / (double) TimeUnit.SECONDS.toNanos(1));
+        lastRateNanos = now;
+        lastRateCount = count;
+        return rate;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchSizes.getCount();
+    }
+
+    @Override
+    public long getFailedBatchCount() {
+        return failedBatches.get();
+    }
+
+    @Override
+    public double getBatchSizeMean() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public long getBatchSizeMax() {
+        return batchSizes.getMax();
+    }
+
+    @Override
+    public double getHandleLatencyMeanMillis() {
+        return handleLatencies.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getHandleLatency99thMillis() {
+        return handleLatencies.getPercentile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getHandleLatencyMaxMillis() {
+        return handleLatencies.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @Override
+    public long getDrainWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(drainWaitNanos.get());
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * registers as <code>com.collective.batchelor:type=BatchMetrics,name=&lt;name&gt;</code> with the platform MBean server
+     */
+    public synchronized void registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName newName = new ObjectName("com.collective.batchelor:type=BatchMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, newName);
+        unregisterMBean();
+        objectName = newName;
+    }
+
+    public synchronized void unregisterMBean() {
+        if (objectName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("unregister " + objectName + " failed", e);
+        }
+        objectName = null;
+    }
+}
@@ -0,0 +1,32 @@
+package com.collective.batchelor.metrics;
+
+public interface CountingBatchMetricsMBean {
+
+    long getEnqueuedCount();
+
+    double getEnqueueRate();
+
+    long getDroppedCount();
+
+    long getRejectedCount();
+
+    long getBatchCount();
+
+    long getFailedBatchCount();
+
+    double getBatchSizeMean();
+
+    long getBatchSizeMax();
+
+    double getHandleLatencyMeanMillis();
+
+    double getHandleLatency99thMillis();
+
+    double getHandleLatencyMaxMillis();
+
+    long getRetryCount();
+
+    long getDrainWaitMillis();
+
+    long getBytesWritten();
+}
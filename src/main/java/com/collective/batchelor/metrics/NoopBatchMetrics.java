@@ -0,0 +1,37 @@
+package com.collective.batchelor.metrics;
+
+public final class NoopBatchMetrics implements BatchMetrics {
+
+    public static final NoopBatchMetrics INSTANCE = new NoopBatchMetrics();
+
+    private NoopBatchMetrics() {
+    }
+
+    @Override
+    public void enqueued() {
+    }
+
+    @Override
+    public void dropped(int events) {
+    }
+
+    @Override
+    public void rejected() {
+    }
+
+    @Override
+    public void drainWaited(long nanos) {
+    }
+
+    @Override
+    public void batchHandled(int events, long latencyNanos, boolean success) {
+    }
+
+    @Override
+    public void retried() {
+    }
+
+    @Override
+    public void bytesWritten(long bytes) {
+    }
+}
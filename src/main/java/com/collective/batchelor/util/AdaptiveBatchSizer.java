@@ -0,0 +1,63 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes batch size and drain linger of an {@link AsyncBatchExecutor} between bounds (AIMD):
+ * <ul>
+ * <li>handle() slower than the target latency: halve the batch size</li>
+ * <li>faster and a backlog of more than a batch: grow the batch size by a step and linger longer</li>
+ * <li>batches don't fill up and nothing is queued: halve the linger, low load shouldn't wait for full batches</li>
+ * </ul>
+ */
+public class AdaptiveBatchSizer {
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final long minLingerMillis;
+    private final long maxLingerMillis;
+    private final long targetLatencyNanos;
+    private final int batchStep;
+    private volatile int batchSize;
+    private volatile long lingerMillis;
+
+    public AdaptiveBatchSizer(int minBatchSize, int maxBatchSize, long minLingerMillis, long maxLingerMillis, long targetLatencyMillis) {
+        Preconditions.checkArgument(minBatchSize > 0 && maxBatchSize >= minBatchSize, "invalid batch size bounds");
+        Preconditions.checkArgument(minLingerMillis >= 0 && maxLingerMillis >= minLingerMillis, "invalid linger bounds");
+        Preconditions.checkArgument(targetLatencyMillis > 0, "target latency must be > 0");
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.minLingerMillis = minLingerMillis;
+        this.maxLingerMillis = maxLingerMillis;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.batchStep = Math.max(1, (maxBatchSize - minBatchSize) / 16);
+        this.batchSize = minBatchSize;
+        this.lingerMillis = minLingerMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getLingerMillis() {
+        return lingerMillis;
+    }
+
+    /**
+     * called after a batch was handled successfully
+     *
+     * @param backlog events still queued
+     */
+    public synchronized void onBatchHandled(int events, long latencyNanos, int backlog) {
+        if (latencyNanos > targetLatencyNanos) {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+        } else if (backlog > batchSize) {
+            batchSize = Math.min(maxBatchSize, batchSize + batchStep);
+            lingerMillis = Math.min(maxLingerMillis, lingerMillis + Math.max(1, (maxLingerMillis - minLingerMillis) / 16));
+        } else if (events < batchSize && backlog == 0) {
+            lingerMillis = Math.max(minLingerMillis, lingerMillis / 2);
+        }
+    }
+}
@@ -1,99 +1,789 @@
 package com.collective.batchelor.util;
 
+import com.collective.batchelor.journal.SpillJournal;
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.eclipse.jetty.util.ConcurrentArrayBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AsyncBatchExecutor<T> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(AsyncBatchExecutor.class);
     private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final long MAX_BREAKER_SLEEP = 100;
+    private static final long MIN_JOIN_MILLIS = 100;
+    private static final ScheduledExecutorService STAGING_SWEEPER = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("stagingSweeper-%d").build());
+    private static final ThreadFactory WORKER_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable worker) {
+            Thread thread = new Thread(worker, "asyncBatchWorkerThread-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
+    class Worker implements Runnable {
+        // dispatcher states
+        private static final int IDLE = 0;
+        private static final int WAITING = 1;
+        private static final int SCHEDULED = 2;
+        private static final int RUNNING = 3;
+        private static final int STOPPED = 4;
 
-    class Worker extends Thread {
         private final int batchSize;
+        private final BatchHandler<T> delegate;
         private volatile boolean running = true;
-        final List<T> messages;
+        private volatile boolean started = false;
+        private volatile boolean spilling = false;
+        private volatile boolean sinkFailing = false;
+        private boolean sinkAccepted;
+        BlockingQueue<T> queue;
+        // the batch being filled, handed over to the handler stage when pipelined
+        List<T> messages;
+        // polled event that did not fit into the byte limit of the last batch
+        private T carry;
+        private boolean fromJournal;
+        // size of the batch being handed over, 0 while collecting
+        private int delivering;
+        private int attempt;
+        // events put in the queue and taken from it and handled, for flush barriers
+        private final AtomicLong enqueued = new AtomicLong();
+        private volatile long completed;
+        private final Queue<Barrier> barriers = new ConcurrentLinkedQueue<>();
+        private final CountDownLatch stopped = new CountDownLatch(1);
+        private volatile Thread thread;
+        // only used when pipelined: batches go from the drain stage to the handler stage and come back empty
+        private BlockingQueue<List<T>> freeBatches;
+        private BlockingQueue<List<T>> fullBatches;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // events in the batches passed to the handler stage and not handled yet, for the queue size
+        private final AtomicInteger pipelinedEvents = new AtomicInteger();
+        private volatile List<T> handling;
+        // only used when running on a dispatcher
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private volatile boolean lingering;
+        private volatile ScheduledFuture<?> pending;
+        private boolean collecting;
+        private long lingerDeadline;
+        private final Runnable scheduledStep = new Runnable() {
+            @Override
+            public void run() {
+                step(SCHEDULED);
+            }
+        };
+        private final Runnable delayedStep = new Runnable() {
+            @Override
+            public void run() {
+                step(WAITING);
+            }
+        };
 
-        private Worker(int batchSize) {
+        private Worker(int batchSize, BatchHandler<T> delegate) {
             this.batchSize = batchSize;
+            this.delegate = delegate;
+            this.queue = buildQueue();
             this.messages = Lists.newArrayListWithCapacity(batchSize);
-            setDaemon(true);
+        }
+
+        private void start() {
+            started = true;
+            BatchDispatcher batchDispatcher = dispatcher;
+            if (batchDispatcher == null) {
+                if (pipelineDepth > 1) {
+                    freeBatches = new ArrayBlockingQueue<>(pipelineDepth);
+                    fullBatches = new ArrayBlockingQueue<>(pipelineDepth);
+                    for (int i = 1; i < pipelineDepth; i++) {
+                        freeBatches.add(Lists.<T>newArrayListWithCapacity(batchSize));
+                    }
+                }
+                thread = threadFactory.newThread(this);
+                thread.start();
+            } else if (hasSpilledEvents() && state.compareAndSet(IDLE, SCHEDULED)) {
+                batchDispatcher.execute(scheduledStep);
+            }
         }
 
         @Override
         public void run() {
+            if (fullBatches != null) {
+                runPipelined();
+                return;
+            }
             while (running) {
                 try {
-                    // drain until we have a full batch or the duration is up
-                    Queues.drain(queue,
-                            messages,
-                            batchSize,
-                            queueDrainTime,
-                            TimeUnit.MILLISECONDS);
-
-                    if (queue.size() > batchSize) {
-                        LOGGER.warn("queue size ({}) > batch size for {}", queue.size(), delegate.getClass().getSimpleName());
+                    if (delivering == 0) {
+                        long drainStart = System.nanoTime();
+                        fill(lingerMillis());
+                        metrics.drainWaited(System.nanoTime() - drainStart);
                     }
-
                     if (!messages.isEmpty()) {
-                        // try again after one second until messages are processed
-                        while (!delegate.handle(messages)) {
-                            Thread.sleep(retryInterval);
-                            if (queue.size() > batchSize) {
-                                LOGGER.warn("queue size ({}) > batch size for {}", queue.size(), delegate.getClass().getSimpleName());
-                            }
+                        delivering = messages.size();
+                        long delay;
+                        while ((delay = tryDeliver(messages)) >= 0) {
+                            Thread.sleep(delay);
                         }
-                        messages.clear();
+                        batchDone();
                     }
+                    completeBarriers(true);
                 } catch (InterruptedException ignored) {
                     Thread.currentThread().interrupt();
                 }
             }
+            stopped();
         }
 
-        private void shutdown() {
-            flushQueue();
-            this.running = false;
+        /**
+         * The drain stage: fills a batch while the handler stage delivers the one before, then swaps the full
+         * batch for an empty one. A batch is only ever touched by the stage owning it.
+         */
+        private void runPipelined() {
+            Thread handlerStage = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    handleBatches();
+                }
+            });
+            handlerStage.start();
+            while (running) {
+                try {
+                    long drainStart = System.nanoTime();
+                    fill(lingerMillis());
+                    metrics.drainWaited(System.nanoTime() - drainStart);
+                    if (!messages.isEmpty()) {
+                        List<T> empty = freeBatches.take();
+                        inFlight.incrementAndGet();
+                        pipelinedEvents.addAndGet(messages.size());
+                        // never blocks, there are only as many batches as places in the queue
+                        fullBatches.offer(messages);
+                        messages = empty;
+                    }
+                    completeBarriers(true);
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Thread.interrupted();
+            handlerStage.interrupt();
+            Uninterruptibles.joinUninterruptibly(handlerStage);
+            stopped();
         }
 
-        private void flushQueue() {
-            if (!this.running)
+        /**
+         * The handler stage: delivers the batches in the order the drain stage filled them. A batch interrupted
+         * by stop() stays in {@link #handling} for {@link #takeRemaining()}.
+         */
+        private void handleBatches() {
+            List<T> batch = null;
+            while (true) {
+                try {
+                    if (batch == null) {
+                        batch = fullBatches.take();
+                        handling = batch;
+                    }
+                    int size = batch.size();
+                    long delay;
+                    while ((delay = tryDeliver(batch)) >= 0) {
+                        Thread.sleep(delay);
+                    }
+                    completed += size;
+                    pipelinedEvents.addAndGet(-size);
+                    handling = null;
+                    batch.clear();
+                    freeBatches.offer(batch);
+                    batch = null;
+                    inFlight.decrementAndGet();
+                    completeBarriers(false);
+                } catch (InterruptedException e) {
+                    if (!running)
+                        return;
+                }
+            }
+        }
+
+        /**
+         * Collects what is queued, hands the batch over once it is complete or its linger time is up and
+         * reschedules itself, without ever blocking the dispatcher thread. Only one step of a worker runs at a time.
+         */
+        private void step(int expected) {
+            if (!state.compareAndSet(expected, RUNNING))
                 return;
+            lingering = false;
+            long delayNanos;
+            try {
+                delayNanos = running ? advance() : -1;
+            } catch (InterruptedException | RuntimeException e) {
+                LOGGER.error("{} failed, trying again", getName(), e);
+                delayNanos = TimeUnit.MILLISECONDS.toNanos(retryPolicy.delayMillis(1));
+            }
+            if (!running) {
+                stopped();
+            } else if (delayNanos < 0) {
+                state.set(IDLE);
+                // an event added while this step was running did not schedule another one
+                if ((!queue.isEmpty() || hasSpilledEvents()) && state.compareAndSet(IDLE, SCHEDULED)) {
+                    dispatcher.execute(scheduledStep);
+                }
+            } else if (delayNanos == 0) {
+                state.set(SCHEDULED);
+                dispatcher.execute(scheduledStep);
+            } else {
+                state.set(WAITING);
+                pending = dispatcher.schedule(delayedStep, delayNanos);
+            }
+        }
 
-            // let the queue drain
-            while (!queue.isEmpty() || !messages.isEmpty()) {
+        /**
+         * @return nanos to wait before the next step, 0 to go on right away, -1 if there is nothing to do
+         */
+        private long advance() throws InterruptedException {
+            if (delivering == 0) {
+                boolean complete = fill(0);
+                if (messages.isEmpty()) {
+                    completeBarriers(true);
+                    return -1;
+                }
+                long now = System.nanoTime();
+                if (!collecting) {
+                    collecting = true;
+                    lingerDeadline = now + TimeUnit.MILLISECONDS.toNanos(lingerMillis());
+                }
+                if (!complete && !fromJournal && !hasSpilledEvents() && lingerDeadline - now > 0) {
+                    lingering = true;
+                    return lingerDeadline - now;
+                }
+                collecting = false;
+                delivering = messages.size();
+            }
+            long delay = tryDeliver(messages);
+            if (delay >= 0)
+                return TimeUnit.MILLISECONDS.toNanos(delay);
+            batchDone();
+            completeBarriers(true);
+            return queue.isEmpty() && !hasSpilledEvents() ? -1 : 0;
+        }
+
+        /**
+         * wakes the worker up when running on a dispatcher
+         */
+        private void signal() {
+            BatchDispatcher batchDispatcher = dispatcher;
+            if (batchDispatcher == null)
+                return;
+            int current = state.get();
+            if (current == IDLE) {
+                if (state.compareAndSet(IDLE, SCHEDULED)) {
+                    batchDispatcher.execute(scheduledStep);
+                }
+            } else if (current == WAITING && lingering && queue.size() >= batchSize()) {
+                // no need to wait for the linger time with a full batch queued
+                if (state.compareAndSet(WAITING, SCHEDULED)) {
+                    ScheduledFuture<?> delayed = pending;
+                    if (delayed != null) {
+                        delayed.cancel(false);
+                    }
+                    batchDispatcher.execute(scheduledStep);
+                }
+            }
+        }
+
+        /**
+         * @return true if the batch is complete
+         */
+        private boolean fill(long lingerMillis) throws InterruptedException {
+            if (messages.isEmpty() && carry == null && queue.isEmpty() && hasSpilledEvents()) {
+                // queued events are older than spilled ones, so only replay once the queue is empty
+                fromJournal = readJournal();
+                return true;
+            }
+            // drain until we have a full batch or the duration is up
+            long linger = hasSpilledEvents() ? 0 : lingerMillis;
+            boolean complete;
+            Weigher<? super T> eventWeigher = weigher;
+            if (eventWeigher == null) {
+                Queues.drain(queue, messages, Math.max(0, batchSize() - messages.size()), linger, TimeUnit.MILLISECONDS);
+                complete = messages.size() >= batchSize();
+            } else {
+                complete = drainWeighed(eventWeigher, linger);
+            }
+            if (queue.size() > batchSize()) {
+                LOGGER.warn("queue size ({}) > batch size for {}", queue.size(), delegate.getClass().getSimpleName());
+            }
+            return complete;
+        }
+
+        private void batchDone() {
+            if (fromJournal) {
+                commitJournal();
+            } else {
+                completed += delivering;
+            }
+            fromJournal = false;
+            delivering = 0;
+            messages.clear();
+        }
+
+        private void stopped() {
+            state.set(STOPPED);
+            for (Barrier barrier : barriers) {
+                barrier.future.set(null);
+            }
+            stopped.countDown();
+        }
+
+        boolean isAlive() {
+            return started && stopped.getCount() > 0;
+        }
+
+        Thread.State getState() {
+            Thread workerThread = thread;
+            if (workerThread != null)
+                return workerThread.getState();
+            if (!started)
+                return Thread.State.NEW;
+            return isAlive() ? Thread.State.RUNNABLE : Thread.State.TERMINATED;
+        }
+
+        String getName() {
+            Thread workerThread = thread;
+            return workerThread != null ? workerThread.getName() : "dispatched " + delegate.getClass().getSimpleName();
+        }
+
+        /**
+         * A barrier is reached when everything queued before it was handled, or when the worker runs idle
+         * (dropped events never complete).
+         *
+         * @param drainStage false when called by the handler stage of a pipelined worker, which can't tell if the
+         *                   worker is idle
+         */
+        private void completeBarriers(boolean drainStage) {
+            if (barriers.isEmpty())
+                return;
+            boolean spilled = hasSpilledEvents();
+            boolean idle = drainStage && !spilled && queue.isEmpty() && messages.isEmpty() && carry == null && inFlight.get() == 0;
+            long done = completed;
+            for (Iterator<Barrier> iterator = barriers.iterator(); iterator.hasNext(); ) {
+                Barrier barrier = iterator.next();
+                if (idle || (!spilled && done >= barrier.target)) {
+                    barrier.future.set(null);
+                    iterator.remove();
+                }
+            }
+        }
+
+        private ListenableFuture<Void> barrier() {
+            Barrier barrier = new Barrier(enqueued.get());
+            if (!isAlive() || (completed >= barrier.target && !hasSpilledEvents())) {
+                barrier.future.set(null);
+                return barrier.future;
+            }
+            barriers.add(barrier);
+            if (!isAlive()) {
+                // the worker stopped in between and won't see it
+                barrier.future.set(null);
+            } else if (dispatcher != null && state.compareAndSet(IDLE, SCHEDULED)) {
+                // an idle worker has to look at it, e.g. when the events were dropped
+                dispatcher.execute(scheduledStep);
+            }
+            return barrier.future;
+        }
+
+        /**
+         * like Queues.drain, but also closes the batch once it reaches maxBatchBytes
+         */
+        private boolean drainWeighed(Weigher<? super T> eventWeigher, long lingerMillis) throws InterruptedException {
+            int maxEvents = batchSize();
+            long bytes = 0;
+            for (T message : messages) {
+                bytes += eventWeigher.weigh(message);
+            }
+            if (carry != null) {
+                messages.add(carry);
+                bytes += eventWeigher.weigh(carry);
+                carry = null;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (messages.size() < maxEvents && bytes < maxBatchBytes) {
+                T event = queue.poll();
+                if (event == null) {
+                    event = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (event == null)
+                        break;
+                }
+                int weight = eventWeigher.weigh(event);
+                if (!messages.isEmpty() && bytes + weight > maxBatchBytes) {
+                    carry = event;
+                    return true;
+                }
+                messages.add(event);
+                bytes += weight;
+            }
+            return messages.size() >= maxEvents || bytes >= maxBatchBytes;
+        }
+
+        private int batchSize() {
+            AdaptiveBatchSizer sizer = batchSizer;
+            return sizer == null ? batchSize : sizer.getBatchSize();
+        }
+
+        private long lingerMillis() {
+            AdaptiveBatchSizer sizer = batchSizer;
+            return sizer == null ? queueDrainTime : sizer.getLingerMillis();
+        }
+
+        /**
+         * one attempt to hand the batch to the delegate
+         *
+         * @return -1 once the batch was accepted, otherwise the millis to back off as the retry policy says
+         */
+        private long tryDeliver(List<T> messages) {
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.allowRequest()) {
+                // wait in slices, the breaker might be closed from outside or a trial call is running
+                long remaining = breaker.remainingOpenMillis();
+                return remaining == 0 ? MAX_BREAKER_SLEEP : Math.min(MAX_BREAKER_SLEEP, remaining);
+            }
+            long handleStart = System.nanoTime();
+            boolean handled = handle(breaker, messages);
+            long latency = System.nanoTime() - handleStart;
+            metrics.batchHandled(messages.size(), latency, handled);
+            if (handled) {
+                AdaptiveBatchSizer sizer = batchSizer;
+                if (sizer != null) {
+                    sizer.onBatchHandled(messages.size(), latency, queue.size());
+                }
+                recovered();
+                return -1;
+            }
+            metrics.retried();
+            attempt++;
+            if (attempt == 1) {
+                sinkFailing = true;
+                LOGGER.warn("{} failed to handle batch, retrying (queue size {})", delegate.getClass().getSimpleName(), queue.size());
+            }
+            BatchHandler<T> deadLetter = deadLetterHandler;
+            if (deadLetter != null && messages.size() > 1 && attempt % attemptsBeforeBisect == 0 && isolate(deadLetter, messages)) {
+                recovered();
+                return -1;
+            }
+            return retryPolicy.delayMillis(attempt);
+        }
+
+        /**
+         * calls the delegate and records the outcome with the breaker that allowed the call
+         */
+        private boolean handle(CircuitBreaker breaker, List<T> batch) {
+            boolean handled = false;
+            try {
+                handled = delegate.handle(batch);
+                return handled;
+            } finally {
+                if (breaker != null) {
+                    if (handled) {
+                        breaker.recordSuccess();
+                    } else {
+                        breaker.recordFailure();
+                    }
+                }
+            }
+        }
+
+        private void recovered() {
+            if (attempt > 0) {
+                sinkFailing = false;
+                LOGGER.info("{} recovered after {} retries", delegate.getClass().getSimpleName(), attempt);
+            }
+            attempt = 0;
+        }
+
+        /**
+         * Splits the failing batch in halves until the events the handler refuses are found. A single event only
+         * goes to the dead letter handler if the handler accepted some other part of the batch, otherwise the
+         * handler itself is considered down and the undelivered rest is retried as usual, so it is once the circuit
+         * breaker opens.
+         *
+         * @return true if all events were delivered or dead lettered
+         */
+        private boolean isolate(BatchHandler<T> deadLetter, List<T> messages) {
+            List<T> batch = ImmutableList.copyOf(messages);
+            sinkAccepted = false;
+            int mid = batch.size() / 2;
+            int stoppedAt = isolate(deadLetter, batch, 0, mid);
+            if (stoppedAt < 0) {
+                stoppedAt = isolate(deadLetter, batch, mid, batch.size());
+            }
+            messages.clear();
+            if (stoppedAt < 0)
+                return true;
+            messages.addAll(batch.subList(stoppedAt, batch.size()));
+            return false;
+        }
+
+        /**
+         * @return -1 once [from, to) is done, or the index to resume whole-batch retries from
+         */
+        private int isolate(BatchHandler<T> deadLetter, List<T> batch, int from, int to) {
+            List<T> part = batch.subList(from, to);
+            CircuitBreaker breaker = circuitBreaker;
+            if (breaker != null && !breaker.allowRequest())
+                return from;
+            long handleStart = System.nanoTime();
+            boolean handled = handle(breaker, part);
+            metrics.batchHandled(part.size(), System.nanoTime() - handleStart, handled);
+            if (handled) {
+                sinkAccepted = true;
+                return -1;
+            }
+            if (part.size() > 1) {
+                int mid = from + part.size() / 2;
+                int stoppedAt = isolate(deadLetter, batch, from, mid);
+                return stoppedAt < 0 ? isolate(deadLetter, batch, mid, to) : stoppedAt;
+            }
+            if (!sinkAccepted)
+                return from;
+            LOGGER.warn("{} refused a single event, handing it to {}", delegate.getClass().getSimpleName(), deadLetter.getClass().getSimpleName());
+            deadLettered.incrementAndGet();
+            if (!deadLetter.handle(part)) {
+                LOGGER.error("dead letter handler failed, dropping event");
+                metrics.dropped(1);
+            }
+            return -1;
+        }
+
+        /**
+         * once spilling started, events keep going to the journal until it was replayed, to keep them in order
+         */
+        private boolean spill(T event) {
+            SpillJournal<T> journal = spillJournal;
+            if (journal == null)
+                return false;
+            if (!spilling && !sinkFailing && queue.size() < spillHighWaterMark)
+                return false;
+            // under the journal's lock, so the worker can't find it empty and stop spilling before we appended
+            synchronized (journal) {
+                if (!spilling && !sinkFailing && queue.size() < spillHighWaterMark)
+                    return false;
                 try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
+                    spilling = true;
+                    journal.append(event);
+                    return true;
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("spilling to journal failed", e);
+                    return false;
+                }
+            }
+        }
+
+        private boolean hasSpilledEvents() {
+            SpillJournal<T> journal = spillJournal;
+            return journal != null && !journal.isEmpty();
+        }
+
+        private boolean readJournal() {
+            try {
+                return spillJournal.read(messages, batchSize()) > 0;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("reading from journal failed", e);
+                return false;
+            }
+        }
+
+        private void commitJournal() {
+            SpillJournal<T> journal = spillJournal;
+            synchronized (journal) {
+                journal.commit();
+                if (journal.isEmpty()) {
+                    spilling = false;
+                }
+            }
+        }
+
+        private void terminate() {
+            running = false;
+            Thread workerThread = thread;
+            if (workerThread != null) {
+                workerThread.interrupt();
+                return;
+            }
+            while (true) {
+                int current = state.get();
+                if (current == IDLE || current == WAITING) {
+                    if (state.compareAndSet(current, STOPPED)) {
+                        ScheduledFuture<?> delayed = pending;
+                        if (delayed != null) {
+                            delayed.cancel(false);
+                        }
+                        stopped();
+                        return;
+                    }
+                } else {
+                    // a scheduled or running step sees running == false
+                    return;
+                }
+            }
+        }
+
+        private boolean join(long millis) {
+            if (!isAlive())
+                return true;
+            boolean interrupted = false;
+            long start = System.nanoTime();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+            try {
+                while (true) {
+                    try {
+                        return stopped.await(Math.max(0, nanos - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
                     Thread.currentThread().interrupt();
                 }
             }
         }
+
+        /**
+         * only safe once the worker stopped
+         */
+        private List<T> takeRemaining() {
+            List<T> remaining = Lists.newArrayList();
+            List<T> handled = handling;
+            if (handled != null) {
+                remaining.addAll(handled);
+                handling = null;
+            }
+            if (fullBatches != null) {
+                for (List<T> batch = fullBatches.poll(); batch != null; batch = fullBatches.poll()) {
+                    remaining.addAll(batch);
+                }
+                pipelinedEvents.set(0);
+            }
+            remaining.addAll(messages);
+            messages.clear();
+            if (carry != null) {
+                remaining.add(carry);
+                carry = null;
+            }
+            queue.drainTo(remaining);
+            return remaining;
+        }
     }
 
-    private final BatchHandler<T> delegate;
-    private final BlockingQueue<T> queue;
+    private static class Barrier {
+        final long target;
+        final SettableFuture<Void> future = SettableFuture.create();
+
+        Barrier(long target) {
+            this.target = target;
+        }
+    }
+
+    private final List<BatchHandler<T>> delegates;
+    private final Partitioner<? super T> partitioner;
     private final int queueSize;
     private final long queueDrainTime;
-    private final long retryInterval;
+    private final WaitStrategy waitStrategy;
+    private volatile RetryPolicy retryPolicy;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile OverflowPolicy<T> overflowPolicy = OverflowPolicy.block();
+    private volatile BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+    private volatile Weigher<? super T> weigher;
+    private volatile BatchDispatcher dispatcher;
+    private volatile List<Lane<T>> lanes;
+    private volatile LoadShedder<? super T> loadShedder;
+    private ThreadLocal<StagingBuffer> staging;
+    private final Set<StagingBuffer> stagingBuffers = Collections.newSetFromMap(new ConcurrentHashMap<StagingBuffer, Boolean>());
+    private int stagingSize;
+    private long stagingMaxDelay;
+    private ScheduledFuture<?> stagingSweep;
+    private ThreadFactory threadFactory = WORKER_THREADS;
+    private volatile long maxBatchBytes;
+    private volatile AdaptiveBatchSizer batchSizer;
+    private volatile SpillJournal<T> spillJournal;
+    private volatile BatchHandler<T> deadLetterHandler;
+    private volatile BatchHandler<T> shutdownFallbackHandler;
+    private volatile int attemptsBeforeBisect;
+    private int pipelineDepth;
+    private final AtomicLong deadLettered = new AtomicLong();
+    private int spillHighWaterMark;
     private volatile boolean append = false;
 
+    final List<Worker> workers;
     final Worker workerThread;
 
     public AsyncBatchExecutor(final int batchSize, final int queueSize, BatchHandler<T> delegate, long queueDrainTime, long retryInterval) {
+        this(batchSize, queueSize, Collections.singletonList(delegate), null, queueDrainTime, retryInterval);
+    }
+
+    /**
+     * Creates one worker per delegate, each with its own queue of <code>queueSize</code> and its own batch.
+     * Every delegate is only ever called from its own worker thread, so pass distinct handler instances.
+     */
+    public AsyncBatchExecutor(final int batchSize, final int queueSize, List<? extends BatchHandler<T>> delegates, Partitioner<? super T> partitioner, long queueDrainTime, long retryInterval) {
+        this(batchSize, queueSize, delegates, partitioner, queueDrainTime, retryInterval, null);
+    }
+
+    /**
+     * @param waitStrategy if set, a pre-allocated {@link RingBufferQueue} of <code>queueSize</code> waiting
+     *                     with this strategy is used instead of the default queue. Requires <code>queueSize > 0</code>.
+     */
+    public AsyncBatchExecutor(final int batchSize, final int queueSize, List<? extends BatchHandler<T>> delegates, Partitioner<? super T> partitioner, long queueDrainTime, long retryInterval, WaitStrategy waitStrategy) {
+        Preconditions.checkArgument(waitStrategy == null || queueSize > 0, "a ring buffer queue needs to be bounded");
+        Preconditions.checkArgument(!delegates.isEmpty(), "at least one delegate is required");
+        Preconditions.checkArgument(delegates.size() == 1 || partitioner != null, "a partitioner is required for more than one delegate");
         this.queueSize = queueSize;
-        this.delegate = delegate;
+        this.delegates = ImmutableList.copyOf(delegates);
+        this.partitioner = partitioner;
         this.queueDrainTime = queueDrainTime;
-        this.queue = buildQueue();
-        this.workerThread = new Worker(batchSize);
-        this.retryInterval = retryInterval;
+        this.retryPolicy = RetryPolicy.fixed(retryInterval);
+        this.waitStrategy = waitStrategy;
+        ImmutableList.Builder<Worker> workers = ImmutableList.builder();
+        for (BatchHandler<T> delegate : this.delegates) {
+            workers.add(new Worker(batchSize, delegate));
+        }
+        this.workers = workers.build();
+        this.workerThread = this.workers.get(0);
     }
 
     public static <T> AsyncBatchExecutor<T> createAndStart(final int batchSize, final int queueSize, BatchHandler<T> delegate, long queueDrainTime, long retryInterval) {
@@ -102,19 +792,59 @@ public class AsyncBatchExecutor<T> {
         return asyncBatchExecutor;
     }
 
-    private ConcurrentArrayBlockingQueue<T> buildQueue() {
+    /**
+     * producers add raw events, the worker encodes each batch before handing it to <code>delegate</code>
+     */
+    public static <T, R> AsyncBatchExecutor<T> createAndStart(final int batchSize, final int queueSize, Encoder<? super T, ? extends R> encoder, BatchHandler<R> delegate, long queueDrainTime, long retryInterval) {
+        return createAndStart(batchSize, queueSize, new EncodingBatchHandler<T, R>(encoder, delegate), queueDrainTime, retryInterval);
+    }
+
+    public static <T> AsyncBatchExecutor<T> createAndStart(final int batchSize, final int queueSize, List<? extends BatchHandler<T>> delegates, Partitioner<? super T> partitioner, long queueDrainTime, long retryInterval) {
+        AsyncBatchExecutor<T> asyncBatchExecutor = new AsyncBatchExecutor<>(batchSize, queueSize, delegates, partitioner, queueDrainTime, retryInterval);
+        asyncBatchExecutor.start();
+        return asyncBatchExecutor;
+    }
+
+    public static <T> AsyncBatchExecutor<T> createAndStart(final int batchSize, final int queueSize, BatchHandler<T> delegate, long queueDrainTime, long retryInterval, WaitStrategy waitStrategy) {
+        AsyncBatchExecutor<T> asyncBatchExecutor = new AsyncBatchExecutor<>(batchSize, queueSize, Collections.singletonList(delegate), null, queueDrainTime, retryInterval, waitStrategy);
+        asyncBatchExecutor.start();
+        return asyncBatchExecutor;
+    }
+
+    private BlockingQueue<T> buildQueue() {
+        if (waitStrategy != null) {
+            return new RingBufferQueue<>(queueSize, waitStrategy);
+        }
         if (queueSize > 0) {
             return new ConcurrentArrayBlockingQueue.Bounded<>(queueSize);
         }
         return new ConcurrentArrayBlockingQueue.Unbounded<>();
     }
 
+    public int getPartitions() {
+        return workers.size();
+    }
+
     public int getMaxQueueSize() {
-        return queueSize;
+        List<Lane<T>> priorityLanes = lanes;
+        if (priorityLanes == null)
+            return queueSize * workers.size();
+        int capacity = 0;
+        for (Lane<T> lane : priorityLanes) {
+            capacity += lane.getCapacity();
+        }
+        return capacity * workers.size();
     }
 
+    /**
+     * events queued, being drained and, when pipelined, waiting for or in the handler stage
+     */
     public int getQueueSize() {
-        return queue.size() + workerThread.messages.size();
+        int size = 0;
+        for (Worker worker : workers) {
+            size += worker.queue.size() + worker.messages.size() + worker.pipelinedEvents.get();
+        }
+        return size;
     }
 
     public float getQueueFillFraction() {
@@ -122,33 +852,709 @@ public class AsyncBatchExecutor<T> {
         if (queueSize == 0)
             return 0;
 
-        return (float) getQueueSize() / (float) queueSize;
+        return (float) getQueueSize() / (float) getMaxQueueSize();
+    }
+
+    public OverflowPolicy<T> getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy<T> overflowPolicy) {
+        overflowPolicy.metrics = metrics;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public BatchDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * runs the workers on a pool shared with other executors instead of a thread each, has to be set before
+     * {@link #start()}
+     */
+    public void setDispatcher(BatchDispatcher dispatcher) {
+        checkNotStarted("dispatcher");
+        Preconditions.checkState(dispatcher == null || pipelineDepth == 0, "pipelining needs a thread per worker");
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * creates the worker threads when no dispatcher is used, e.g. {@link BatchDispatcher#virtualThreadFactory(String)}
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        checkNotStarted("thread factory");
+        this.threadFactory = Preconditions.checkNotNull(threadFactory);
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Gives each worker a second thread that calls the handler, so the next batch is drained while the current
+     * one is handled. <code>batches</code> batches per worker are reused and handed back and forth between the
+     * two threads, at most <code>batches - 1</code> full batches wait for the handler. Has to be set before
+     * {@link #start()}, not supported with a dispatcher or a spill journal.
+     */
+    public void setPipelineDepth(int batches) {
+        Preconditions.checkArgument(batches > 1, "a pipeline needs at least 2 batches");
+        checkNotStarted("pipeline depth");
+        Preconditions.checkState(dispatcher == null, "pipelining needs a thread per worker");
+        Preconditions.checkState(spillJournal == null, "pipelining is not supported with a spill journal");
+        this.pipelineDepth = batches;
+    }
+
+    public Weigher<? super T> getWeigher() {
+        return weigher;
+    }
+
+    /**
+     * closes a batch at <code>maxBatchBytes</code> as weighed by <code>weigher</code>, or at the batch size or
+     * drain time, whichever comes first
+     */
+    public void setWeigher(Weigher<? super T> weigher, long maxBatchBytes) {
+        Preconditions.checkArgument(maxBatchBytes > 0, "max batch bytes must be > 0");
+        checkNotStarted("weigher");
+        this.maxBatchBytes = maxBatchBytes;
+        this.weigher = Preconditions.checkNotNull(weigher);
+    }
+
+    /**
+     * like {@link #setWeigher(Weigher, long)}, also bounds each partition's queue to <code>maxQueueBytes</code>
+     * (0 for no byte bound) - the overflow policy applies once it is reached. Has to be set before {@link #start()},
+     * a byte bound is not supported with priority lanes.
+     */
+    public void setWeigher(Weigher<? super T> weigher, long maxBatchBytes, long maxQueueBytes) {
+        Preconditions.checkArgument(maxQueueBytes >= 0, "max queue bytes must be >= 0");
+        Preconditions.checkState(maxQueueBytes == 0 || lanes == null, "queue bytes can't be bounded with priority lanes");
+        setWeigher(weigher, maxBatchBytes);
+        if (maxQueueBytes == 0)
+            return;
+        for (Worker worker : workers) {
+            worker.queue = new ByteBoundedQueue<>(buildQueue(), weigher, maxQueueBytes);
+        }
+    }
+
+    /**
+     * bytes queued in all partitions, only known when the queue is bounded in bytes
+     */
+    public long getQueuedBytes() {
+        long bytes = 0;
+        for (Worker worker : workers) {
+            if (worker.queue instanceof ByteBoundedQueue) {
+                bytes += ((ByteBoundedQueue<T>) worker.queue).getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public AdaptiveBatchSizer getAdaptiveBatchSizer() {
+        return batchSizer;
+    }
+
+    /**
+     * Lets batch size and drain time follow the measured handle() latency and backlog instead of the values
+     * given to the constructor. Make sure the handler copes with the max batch size.
+     */
+    public void setAdaptiveBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
+    public BatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+        overflowPolicy.metrics = metrics;
+        List<Lane<T>> priorityLanes = lanes;
+        if (priorityLanes != null) {
+            for (Lane<T> lane : priorityLanes) {
+                lane.getOverflowPolicy().metrics = metrics;
+            }
+        }
+    }
+
+    /**
+     * Lets each producer thread collect events in its own buffer and publish them to the queue in chunks of
+     * <code>chunkSize</code>, so the shared queue is touched once per chunk. Staged events are published at the
+     * latest after about <code>maxDelayMillis</code> while the queue has space, and on flush or stop; at most
+     * <code>chunkSize</code> events per producer thread are held outside the queue bound. Events added to a lane with
+     * {@link #add(Object, int)} are not staged. Has to be set before {@link #start()}.
+     */
+    public void setStaging(int chunkSize, long maxDelayMillis) {
+        Preconditions.checkArgument(chunkSize > 1, "chunk size must be > 1");
+        Preconditions.checkArgument(maxDelayMillis > 0, "max delay must be > 0");
+        checkNotStarted("staging");
+        this.stagingSize = chunkSize;
+        this.stagingMaxDelay = maxDelayMillis;
+        this.staging = new ThreadLocal<>();
+    }
+
+    public List<Lane<T>> getPriorityLanes() {
+        return lanes;
+    }
+
+    /**
+     * Gives each partition a bounded queue per lane instead of a single queue, the first lane has the highest
+     * priority. The worker fills batches from the lanes strictly by priority or weighted, each lane applies its
+     * own overflow policy. Replaces the queue set up by the constructor, has to be set before {@link #start()} and
+     * can't be combined with a byte bound from {@link #setWeigher(Weigher, long, long)}.
+     */
+    public void setPriorityLanes(Lane.Selection selection, List<Lane<T>> lanes) {
+        Preconditions.checkArgument(!lanes.isEmpty(), "at least one lane is needed");
+        checkNotStarted("priority lanes");
+        Preconditions.checkState(!(workerThread.queue instanceof ByteBoundedQueue), "priority lanes can't be combined with a byte bound");
+        for (Lane<T> lane : lanes) {
+            Preconditions.checkArgument(lane.queues.isEmpty(), "lanes can't be shared by executors");
+            lane.getOverflowPolicy().metrics = metrics;
+        }
+        for (Worker worker : workers) {
+            worker.queue = new LaneQueue<>(lanes, selection);
+        }
+        this.lanes = ImmutableList.copyOf(lanes);
+    }
+
+    public LoadShedder<? super T> getLoadShedder() {
+        return loadShedder;
+    }
+
+    /**
+     * samples events out in {@link #add(Object)} once the queue fill fraction passes the shedder's low watermark,
+     * before the overflow policy would have to act
+     */
+    public void setLoadShedder(LoadShedder<? super T> loadShedder) {
+        this.loadShedder = loadShedder;
+    }
+
+    public long getDroppedCount() {
+        return overflowPolicy.getDroppedCount();
+    }
+
+    public long getRejectedCount() {
+        return overflowPolicy.getRejectedCount();
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * replaces the fixed <code>retryInterval</code> given to the constructor
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy);
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * while the breaker is open the handler is not called at all, shared by all partitions
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * true while the handler is considered down - producers may want to shed load
+     */
+    public boolean isCircuitOpen() {
+        CircuitBreaker breaker = circuitBreaker;
+        return breaker != null && breaker.isOpen();
+    }
+
+    public BatchHandler<T> getDeadLetterHandler() {
+        return deadLetterHandler;
+    }
+
+    /**
+     * After every <code>attemptsBeforeBisect</code> failed attempts the batch is split in halves to find the events
+     * the handler refuses (oversized, malformed), the rest is delivered and the refused events go to
+     * <code>deadLetterHandler</code>. If no part of the batch is accepted the handler is considered down and retried
+     * as before. The executor calls done() on the dead letter handler on {@link #stop()}.
+     */
+    public void setDeadLetterHandler(BatchHandler<T> deadLetterHandler, int attemptsBeforeBisect) {
+        Preconditions.checkArgument(attemptsBeforeBisect > 0, "attempts before bisect must be > 0");
+        this.attemptsBeforeBisect = attemptsBeforeBisect;
+        this.deadLetterHandler = deadLetterHandler;
+    }
+
+    /**
+     * events handed to the dead letter handler
+     */
+    public long getDeadLetteredCount() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Events go to the journal instead of the queue as soon as <code>highWaterMark</code> events are queued or
+     * the handler fails, and are replayed in order once the handler recovers. Spilled events that were not
+     * delivered when the process stopped are replayed after a restart. The executor closes the journal on
+     * {@link #stop()}. Only supported with a single partition.
+     */
+    public void setSpillJournal(SpillJournal<T> spillJournal, int highWaterMark) {
+        checkNotStarted("spill journal");
+        Preconditions.checkState(workers.size() == 1, "spill journal is only supported for a single partition");
+        Preconditions.checkArgument(highWaterMark > 0, "high water mark must be > 0");
+        Preconditions.checkState(pipelineDepth == 0, "spill journal is not supported with pipelining");
+        this.spillHighWaterMark = highWaterMark;
+        this.spillJournal = spillJournal;
+        workerThread.spilling = spillJournal != null && !spillJournal.isEmpty();
+    }
+
+    /**
+     * events waiting in the spill journal
+     */
+    public long getSpilledSize() {
+        SpillJournal<T> journal = spillJournal;
+        return journal == null ? 0 : journal.size();
+    }
+
+    private void checkNotStarted(String setting) {
+        Preconditions.checkState(!workerThread.started, "%s can only be set before start()", setting);
     }
 
     public void start() {
-        workerThread.setName("asyncBatchWorkerThread-" + THREAD_COUNTER.incrementAndGet());
-        workerThread.setPriority(Thread.MIN_PRIORITY);
-        workerThread.start();
+        for (Worker worker : workers) {
+            worker.start();
+        }
         append = true;
+        if (staging != null) {
+            final long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(stagingMaxDelay);
+            stagingSweep = STAGING_SWEEPER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        publishStaged(System.nanoTime() - maxDelayNanos, false);
+                    } catch (RuntimeException e) {
+                        LOGGER.error("publishing staged events failed", e);
+                    }
+                }
+            }, stagingMaxDelay, Math.max(1, stagingMaxDelay / 2), TimeUnit.MILLISECONDS);
+        }
     }
 
+    /**
+     * waits until all events were handled, no matter how long the handler keeps failing
+     */
     public void stop() {
+        stop(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops accepting events and waits up to <code>timeout</code> for the queued ones to be handled. Events still
+     * queued after that go to the shutdown fallback handler, or are dropped without one. Events in the spill
+     * journal are kept for the next start.
+     *
+     * @return true if all events were handled in time
+     */
+    public boolean stop(long timeout, TimeUnit unit) {
         append = false;
-        workerThread.shutdown();
-        delegate.done();
+        if (stagingSweep != null) {
+            stagingSweep.cancel(false);
+        }
+        long start = System.nanoTime();
+        long nanos = unit.toNanos(timeout);
+        boolean flushed = awaitUninterruptibly(flushAsync(), start, nanos);
+        for (Worker worker : workers) {
+            worker.terminate();
+        }
+        boolean joined = true;
+        for (Worker worker : workers) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(nanos - (System.nanoTime() - start));
+            joined &= worker.join(Math.max(MIN_JOIN_MILLIS, remainingMillis));
+        }
+        if (!flushed) {
+            handOverRemaining();
+        }
+        // the same handler might have been passed for several partitions
+        Set<BatchHandler<T>> done = Collections.newSetFromMap(new IdentityHashMap<BatchHandler<T>, Boolean>());
+        for (BatchHandler<T> delegate : delegates) {
+            if (done.add(delegate)) {
+                delegate.done();
+            }
+        }
+        if (deadLetterHandler != null && done.add(deadLetterHandler)) {
+            deadLetterHandler.done();
+        }
+        if (shutdownFallbackHandler != null && done.add(shutdownFallbackHandler)) {
+            shutdownFallbackHandler.done();
+        }
+        if (spillJournal != null) {
+            spillJournal.close();
+        }
+        return flushed && joined;
+    }
+
+    private void handOverRemaining() {
+        List<T> remaining = Lists.newArrayList();
+        for (Worker worker : workers) {
+            if (worker.isAlive()) {
+                LOGGER.warn("{} did not stop in time, leaving its batch to it", worker.getName());
+                worker.queue.drainTo(remaining);
+            } else {
+                remaining.addAll(worker.takeRemaining());
+            }
+        }
+        if (remaining.isEmpty())
+            return;
+        BatchHandler<T> fallback = shutdownFallbackHandler;
+        if (fallback != null && fallback.handle(remaining)) {
+            LOGGER.info("handed {} events to shutdown fallback handler", remaining.size());
+            return;
+        }
+        LOGGER.error("dropping {} events not handled before shutdown", remaining.size());
+        metrics.dropped(remaining.size());
+    }
+
+    public BatchHandler<T> getShutdownFallbackHandler() {
+        return shutdownFallbackHandler;
+    }
+
+    /**
+     * gets the events still queued when {@link #stop(long, TimeUnit)} times out, in a single batch
+     */
+    public void setShutdownFallbackHandler(BatchHandler<T> shutdownFallbackHandler) {
+        this.shutdownFallbackHandler = shutdownFallbackHandler;
     }
 
+    /**
+     * waits until the events added before were handled
+     */
     public void flush() {
-        workerThread.flushQueue();
+        Futures.getUnchecked(flushAsync());
     }
 
+    /**
+     * @return false if the events added before were not handled in time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        return awaitUninterruptibly(flushAsync(), System.nanoTime(), unit.toNanos(timeout));
+    }
+
+    /**
+     * completes when the events added before were handled
+     */
+    public ListenableFuture<Void> flushAsync() {
+        if (staging != null) {
+            publishStaged(0, true);
+        }
+        List<ListenableFuture<Void>> barriers = Lists.newArrayListWithCapacity(workers.size());
+        for (Worker worker : workers) {
+            barriers.add(worker.barrier());
+        }
+        // then wait for handlers that accept batches before delivering them
+        return Futures.transform(Futures.allAsList(barriers), new AsyncFunction<List<Void>, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(List<Void> input) {
+                return flushHandlers();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private ListenableFuture<Void> flushHandlers() {
+        Set<BatchHandler<T>> flushed = Collections.newSetFromMap(new IdentityHashMap<BatchHandler<T>, Boolean>());
+        List<ListenableFuture<Void>> futures = Lists.newArrayList();
+        for (BatchHandler<T> delegate : delegates) {
+            if (delegate instanceof FlushableBatchHandler && flushed.add(delegate)) {
+                futures.add(((FlushableBatchHandler<T>) delegate).flushAsync());
+            }
+        }
+        if (futures.isEmpty())
+            return Futures.immediateFuture(null);
+        return Futures.transform(Futures.allAsList(futures), new Function<List<Void>, Void>() {
+            @Override
+            public Void apply(List<Void> input) {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * waits until <code>nanos</code> passed since <code>start</code>, a {@link System#nanoTime()}
+     */
+    private static boolean awaitUninterruptibly(Future<?> future, long start, long nanos) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get(Math.max(0, nanos - (System.nanoTime() - start)), TimeUnit.NANOSECONDS);
+                    return true;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (TimeoutException e) {
+                    return false;
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * with priority lanes the event goes to the last lane
+     */
     public void add(T event) {
+        if (shed(event))
+            return;
+        if (staging != null) {
+            if (append) {
+                stagingBuffer().add(event);
+            }
+            return;
+        }
+        List<Lane<T>> priorityLanes = lanes;
+        if (priorityLanes != null) {
+            int last = priorityLanes.size() - 1;
+            add(event, priorityLanes.get(last), last);
+        } else {
+            add(event, null, -1);
+        }
+    }
+
+    /**
+     * adds the events in one go, with priority lanes to the last lane
+     */
+    public void addAll(Collection<? extends T> events) {
+        if (!append)
+            return;
+        LoadShedder<? super T> shedder = loadShedder;
+        if (shedder != null) {
+            float fillFraction = getQueueFillFraction();
+            List<T> kept = Lists.newArrayListWithCapacity(events.size());
+            for (T event : events) {
+                if (shedder.keep(event, fillFraction)) {
+                    kept.add(event);
+                }
+            }
+            events = kept;
+        }
+        if (staging != null) {
+            stagingBuffer().addAll(events);
+            return;
+        }
+        int enqueued = enqueueAll(events, true);
+        if (enqueued < events.size()) {
+            LOGGER.error("put interrupted, lost {} events", events.size() - enqueued);
+            metrics.dropped(events.size() - enqueued);
+        }
+    }
+
+    /**
+     * Enqueues the events in order until one doesn't go in: without <code>block</code> because its queue is full,
+     * otherwise because the thread was interrupted waiting for space. The interrupt status is kept.
+     *
+     * @return the number of events enqueued
+     */
+    private int enqueueAll(Collection<? extends T> events, boolean block) {
+        List<Lane<T>> priorityLanes = lanes;
+        int index = priorityLanes == null ? -1 : priorityLanes.size() - 1;
+        Lane<T> lane = priorityLanes == null ? null : priorityLanes.get(index);
+        BatchMetrics batchMetrics = metrics;
+        Worker signalled = null;
+        int enqueued = 0;
+        try {
+            for (T event : events) {
+                Worker worker = workerFor(event);
+                if (worker != signalled && signalled != null) {
+                    signalled.signal();
+                }
+                signalled = worker;
+                if (block) {
+                    enqueue(worker, event, lane, index);
+                } else if (!offer(worker, event, lane, index)) {
+                    break;
+                }
+                batchMetrics.enqueued();
+                enqueued++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (signalled != null) {
+                signalled.signal();
+            }
+        }
+        return enqueued;
+    }
+
+    /**
+     * @param lane index of the priority lane, 0 is the highest priority
+     */
+    public void add(T event, int lane) {
+        List<Lane<T>> priorityLanes = lanes;
+        Preconditions.checkState(priorityLanes != null, "no priority lanes set");
+        if (!shed(event)) {
+            add(event, priorityLanes.get(lane), lane);
+        }
+    }
+
+    private boolean shed(T event) {
+        LoadShedder<? super T> shedder = loadShedder;
+        return shedder != null && append && !shedder.keep(event, getQueueFillFraction());
+    }
+
+    private void add(T event, Lane<T> lane, int index) {
         if (!append)
             return;
         try {
-            queue.put(event);
+            Worker worker = workerFor(event);
+            enqueue(worker, event, lane, index);
+            metrics.enqueued();
+            worker.signal();
         } catch (InterruptedException e) {
-            LOGGER.error("put failed", e);
+            Thread.currentThread().interrupt();
+            LOGGER.error("put interrupted, lost 1 event");
+            metrics.dropped(1);
+        }
+    }
+
+    private void enqueue(Worker worker, T event, Lane<T> lane, int index) throws InterruptedException {
+        if (worker.spill(event))
+            return;
+        worker.enqueued.incrementAndGet();
+        if (lane == null) {
+            overflowPolicy.enqueue(worker.queue, event);
+        } else {
+            lane.enqueued.incrementAndGet();
+            lane.getOverflowPolicy().enqueue(((LaneQueue<T>) worker.queue).lane(index), event);
+        }
+    }
+
+    /**
+     * enqueues without waiting for space, bypassing the overflow policy
+     */
+    private boolean offer(Worker worker, T event, Lane<T> lane, int index) {
+        if (worker.spill(event))
+            return true;
+        BlockingQueue<T> queue = lane == null ? worker.queue : ((LaneQueue<T>) worker.queue).lane(index);
+        if (!queue.offer(event))
+            return false;
+        worker.enqueued.incrementAndGet();
+        if (lane != null) {
+            lane.enqueued.incrementAndGet();
+        }
+        return true;
+    }
+
+    private StagingBuffer stagingBuffer() {
+        StagingBuffer buffer = staging.get();
+        if (buffer == null) {
+            buffer = new StagingBuffer();
+            staging.set(buffer);
+            stagingBuffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Publishes what was staged before. From the owner thread once a chunk is full, from the sweeper once the
+     * oldest event waited too long. The sweeper is shared by all executors and must not block, it leaves what does
+     * not fit into the queue staged for the next sweep.
+     *
+     * @param olderThanNanos only publish if the oldest event was staged before, 0 for always
+     * @param wait           whether to wait for the owner currently publishing, and for space in the queue
+     */
+    private void publishStaged(long olderThanNanos, boolean wait) {
+        for (StagingBuffer buffer : stagingBuffers) {
+            buffer.publish(olderThanNanos, wait);
+            if (!buffer.owner.isAlive() && buffer.isEmpty()) {
+                stagingBuffers.remove(buffer);
+            }
+        }
+    }
+
+    /**
+     * Events a producer thread added but did not publish to the queue yet. The lock is only contended when the
+     * sweeper publishes, publishing under it keeps the events of a thread in order.
+     */
+    private final class StagingBuffer {
+        private final Thread owner = Thread.currentThread();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<T> events = Lists.newArrayListWithCapacity(stagingSize);
+        private long firstStaged;
+
+        private void add(T event) {
+            lock.lock();
+            try {
+                if (events.isEmpty()) {
+                    firstStaged = System.nanoTime();
+                }
+                events.add(event);
+                if (events.size() >= stagingSize) {
+                    publishLocked(true);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void addAll(Collection<? extends T> added) {
+            lock.lock();
+            try {
+                if (events.isEmpty()) {
+                    firstStaged = System.nanoTime();
+                }
+                events.addAll(added);
+                if (events.size() >= stagingSize) {
+                    publishLocked(true);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void publish(long olderThanNanos, boolean wait) {
+            if (wait) {
+                lock.lock();
+            } else if (!lock.tryLock()) {
+                // the owner is publishing right now
+                return;
+            }
+            try {
+                if (!events.isEmpty() && (olderThanNanos == 0 || firstStaged - olderThanNanos < 0)) {
+                    publishLocked(wait);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * events that were not enqueued stay staged, in order
+         */
+        private void publishLocked(boolean block) {
+            int enqueued = enqueueAll(events, block);
+            if (enqueued == events.size()) {
+                events.clear();
+            } else {
+                events.subList(0, enqueued).clear();
+                if (block) {
+                    LOGGER.warn("put interrupted, {} events stay staged", events.size());
+                }
+            }
         }
+
+        private boolean isEmpty() {
+            lock.lock();
+            try {
+                return events.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Worker workerFor(T event) {
+        if (workers.size() == 1)
+            return workerThread;
+        return workers.get(partitioner.partition(event, workers.size()));
     }
 }
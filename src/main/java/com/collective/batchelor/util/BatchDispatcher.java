@@ -0,0 +1,62 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the workers of many {@link AsyncBatchExecutor}s on a small shared pool instead of a thread per worker. A
+ * worker only occupies a pool thread while it collects or hands over a batch, the batches of a worker are still
+ * handled one after the other and in order. Shut the dispatcher down after stopping the executors using it.
+ */
+public class BatchDispatcher {
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    public BatchDispatcher(int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be > 0");
+        this.scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactoryBuilder()
+                .setNameFormat("batchDispatcher-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build());
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    void execute(Runnable step) {
+        scheduler.execute(step);
+    }
+
+    ScheduledFuture<?> schedule(Runnable step, long delayNanos) {
+        return scheduler.schedule(step, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return scheduler.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Thread factory for {@link AsyncBatchExecutor#setThreadFactory(ThreadFactory)} running each worker on a
+     * virtual thread, which makes a thread per worker cheap without sharing a pool. Needs Java 21.
+     *
+     * @throws UnsupportedOperationException on older runtimes
+     */
+    public static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21", e);
+        }
+    }
+}
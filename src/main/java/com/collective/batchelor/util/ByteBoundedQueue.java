@@ -0,0 +1,170 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits a queue by the summed weight of its elements in addition to the bound of the wrapped queue. A single
+ * element heavier than the limit is accepted into an empty queue, otherwise it would never fit.
+ */
+class ByteBoundedQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final BlockingQueue<E> delegate;
+    private final Weigher<? super E> weigher;
+    private final long maxBytes;
+    private final AtomicLong bytes = new AtomicLong();
+    private final Object notFull = new Object();
+    private int waiting;
+
+    ByteBoundedQueue(BlockingQueue<E> delegate, Weigher<? super E> weigher, long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "max bytes must be > 0");
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.weigher = Preconditions.checkNotNull(weigher);
+        this.maxBytes = maxBytes;
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    private boolean reserve(int weight) {
+        while (true) {
+            long current = bytes.get();
+            if (current > 0 && current + weight > maxBytes)
+                return false;
+            if (bytes.compareAndSet(current, current + weight))
+                return true;
+        }
+    }
+
+    private E released(E e) {
+        if (e != null) {
+            bytes.addAndGet(-weigher.weigh(e));
+            synchronized (notFull) {
+                if (waiting > 0) {
+                    notFull.notifyAll();
+                }
+            }
+        }
+        return e;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        int weight = weigher.weigh(e);
+        if (!reserve(weight))
+            return false;
+        if (delegate.offer(e))
+            return true;
+        released(e);
+        return false;
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        int weight = weigher.weigh(e);
+        while (!reserve(weight)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            synchronized (notFull) {
+                waiting++;
+                try {
+                    // re-check under the monitor, a release in between would have been missed
+                    if (bytes.get() > 0 && bytes.get() + weight > maxBytes) {
+                        TimeUnit.NANOSECONDS.timedWait(notFull, remaining);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+        long remaining = Math.max(0, deadline - System.nanoTime());
+        if (delegate.offer(e, remaining, TimeUnit.NANOSECONDS))
+            return true;
+        released(e);
+        return false;
+    }
+
+    @Override
+    public E poll() {
+        return released(delegate.poll());
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return released(delegate.poll(timeout, unit));
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return released(delegate.take());
+    }
+
+    @Override
+    public E peek() {
+        return delegate.peek();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return delegate.remainingCapacity();
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> iterator = delegate.iterator();
+        return new Iterator<E>() {
+            private E last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                return last = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                released(last);
+            }
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Stops calling a failing handler for a while. After <code>failureThreshold</code> consecutive failures the
+ * breaker opens for <code>openMillis</code>, then a single trial call decides whether it closes again. Other callers
+ * are refused until the trial was recorded.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private volatile State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        Preconditions.checkArgument(failureThreshold > 0, "failure threshold must be > 0");
+        Preconditions.checkArgument(openMillis >= 0, "open time must be >= 0");
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isOpen() {
+        return state == State.OPEN;
+    }
+
+    /**
+     * true if the handler may be called now. Moves an open breaker to half open once the open time is up, only the
+     * first caller then gets through. Every allowed call has to be followed by recordSuccess() or recordFailure().
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && remainingOpenMillis() == 0) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight)
+                return false;
+            trialInFlight = true;
+            return true;
+        }
+        return state == State.CLOSED;
+    }
+
+    public synchronized long remainingOpenMillis() {
+        if (state != State.OPEN)
+            return 0;
+        return Math.max(0, openedAt + openMillis - System.currentTimeMillis());
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+}
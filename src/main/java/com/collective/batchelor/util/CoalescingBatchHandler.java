@@ -0,0 +1,356 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merges events with the same key before handing them to the delegate, e.g. counters that only differ in their
+ * count. Merged events keep the position of the first event with their key, events with a <code>null</code> key
+ * are passed on as they are.
+ * <p/>
+ * Without a window each batch is merged on its own, a failed batch is merged again on retry, so the merge
+ * function must not modify its arguments. With a window events are merged across batches and handed over by a
+ * timer thread once the window is up, or right away on {@link #flushAsync()}, which the executor calls on flush
+ * and stop. A window that holds <code>maxWindowSize</code> merged events is handed over early. A failed hand over
+ * is retried with the retry policy. While the window is up or full and not handed over handle() returns false
+ * without taking the batch, so a retried batch never ends up in the window twice and the window stays bounded.
+ * What done() can't hand over goes to the fallback handler.
+ */
+public class CoalescingBatchHandler<T, K> implements FlushableBatchHandler<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoalescingBatchHandler.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final int SHUTDOWN_ATTEMPTS = 3;
+
+    public interface MergeFunction<T> {
+        T merge(T merged, T event);
+    }
+
+    private final Function<? super T, K> keyFunction;
+    private final MergeFunction<T> mergeFunction;
+    private final BatchHandler<T> delegate;
+    private final long windowMillis;
+    private final KeyIndex index = new KeyIndex();
+    private final List<T> merged = Lists.newArrayList();
+    private final ScheduledExecutorService windowTimer;
+    private long windowEnd;
+    // counts the windows, a scheduled hand over only applies to the window it was scheduled for
+    private long window;
+    private int failedHandOvers;
+    private SettableFuture<Void> windowHandedOver = SettableFuture.create();
+    private volatile RetryPolicy retryPolicy = RetryPolicy.exponentialBackoff(100, 10000, 0.2);
+    private volatile int maxWindowSize = 10000;
+    private volatile BatchHandler<T> fallbackHandler;
+    private volatile long eventsIn;
+    private volatile long eventsOut;
+
+    public CoalescingBatchHandler(Function<? super T, K> keyFunction, MergeFunction<T> mergeFunction, BatchHandler<T> delegate) {
+        this(keyFunction, mergeFunction, delegate, 0);
+    }
+
+    public CoalescingBatchHandler(Function<? super T, K> keyFunction, MergeFunction<T> mergeFunction, BatchHandler<T> delegate, long windowMillis) {
+        Preconditions.checkArgument(windowMillis >= 0, "window must be >= 0");
+        this.keyFunction = Preconditions.checkNotNull(keyFunction);
+        this.mergeFunction = Preconditions.checkNotNull(mergeFunction);
+        this.delegate = Preconditions.checkNotNull(delegate);
+        this.windowMillis = windowMillis;
+        this.windowTimer = windowMillis == 0 ? null : Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coalescingWindow-" + THREAD_COUNTER.incrementAndGet()).build());
+    }
+
+    /**
+     * delay between attempts to hand over a window, also used by done()
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy);
+    }
+
+    /**
+     * merged events a window holds before it is handed over early, it may exceed that by one batch
+     */
+    public void setMaxWindowSize(int maxWindowSize) {
+        Preconditions.checkArgument(maxWindowSize > 0, "max window size must be > 0");
+        this.maxWindowSize = maxWindowSize;
+    }
+
+    public BatchHandler<T> getFallbackHandler() {
+        return fallbackHandler;
+    }
+
+    /**
+     * gets the merged events done() could not hand over to the delegate, done() calls done() on it
+     */
+    public void setFallbackHandler(BatchHandler<T> fallbackHandler) {
+        this.fallbackHandler = fallbackHandler;
+    }
+
+    @Override
+    public boolean handle(List<T> batch) {
+        if (windowMillis == 0) {
+            merge(batch);
+            if (!handOver()) {
+                // merged again on retry
+                merged.clear();
+                index.clear();
+                return false;
+            }
+            eventsIn += batch.size();
+            return true;
+        }
+        synchronized (this) {
+            long now = DateTimeUtils.currentTimeMillis();
+            if (!merged.isEmpty() && (now >= windowEnd || merged.size() >= maxWindowSize) && !handOver())
+                return false;
+            if (merged.isEmpty()) {
+                windowEnd = now + windowMillis;
+                window++;
+                schedule(window, windowMillis, false);
+            }
+            merge(batch);
+            eventsIn += batch.size();
+            if (merged.size() >= maxWindowSize) {
+                schedule(window, 0, true);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * completes when the events accepted before were handed over, and the delegate flushed them if it is
+     * flushable. Hands over the current window right away.
+     */
+    @Override
+    public ListenableFuture<Void> flushAsync() {
+        if (windowMillis == 0)
+            return flushDelegate();
+        ListenableFuture<Void> handedOver;
+        synchronized (this) {
+            if (merged.isEmpty())
+                return flushDelegate();
+            handedOver = windowHandedOver;
+            schedule(window, 0, true);
+        }
+        return Futures.transform(handedOver, new AsyncFunction<Void, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Void input) {
+                return flushDelegate();
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private ListenableFuture<Void> flushDelegate() {
+        return delegate instanceof FlushableBatchHandler
+                ? ((FlushableBatchHandler<T>) delegate).flushAsync()
+                : Futures.<Void>immediateFuture(null);
+    }
+
+    private void schedule(final long scheduledWindow, long delayMillis, final boolean force) {
+        try {
+            windowTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    handOverWindow(scheduledWindow, force);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // done() hands over what is left
+        }
+    }
+
+    private synchronized void handOverWindow(long scheduledWindow, boolean force) {
+        if (scheduledWindow != window || merged.isEmpty())
+            return;
+        long now = DateTimeUtils.currentTimeMillis();
+        if (!force && now < windowEnd) {
+            schedule(scheduledWindow, windowEnd - now, false);
+            return;
+        }
+        try {
+            if (handOver())
+                return;
+        } catch (RuntimeException e) {
+            LOGGER.error("handing over merged events failed", e);
+        }
+        schedule(scheduledWindow, retryPolicy.delayMillis(++failedHandOvers), force);
+    }
+
+    private void merge(List<T> batch) {
+        for (T event : batch) {
+            K key = keyFunction.apply(event);
+            if (key == null) {
+                merged.add(event);
+                continue;
+            }
+            int position = index.positionOf(key, merged.size());
+            if (position < 0) {
+                merged.add(event);
+            } else {
+                merged.set(position, mergeFunction.merge(merged.get(position), event));
+            }
+        }
+    }
+
+    private boolean handOver() {
+        if (merged.isEmpty() || delegate.handle(merged)) {
+            eventsOut += merged.size();
+            merged.clear();
+            index.clear();
+            windowHandedOver();
+            return true;
+        }
+        return false;
+    }
+
+    private void windowHandedOver() {
+        if (windowMillis == 0)
+            return;
+        failedHandOvers = 0;
+        windowHandedOver.set(null);
+        windowHandedOver = SettableFuture.create();
+    }
+
+    /**
+     * Hands over the last window, retrying with the retry policy a few times. Events that still can't be handed
+     * over go to the fallback handler.
+     */
+    @Override
+    public void done() {
+        if (windowTimer != null) {
+            windowTimer.shutdownNow();
+        }
+        synchronized (this) {
+            for (int attempt = 1; !handOver() && attempt < SHUTDOWN_ATTEMPTS; attempt++) {
+                try {
+                    Thread.sleep(retryPolicy.delayMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (!merged.isEmpty()) {
+                handToFallback();
+            }
+            delegate.done();
+            BatchHandler<T> fallback = fallbackHandler;
+            if (fallback != null) {
+                fallback.done();
+            }
+        }
+    }
+
+    private void handToFallback() {
+        BatchHandler<T> fallback = fallbackHandler;
+        if (fallback != null && fallback.handle(merged)) {
+            LOGGER.warn("handed {} merged events to fallback handler on shutdown", merged.size());
+        } else {
+            LOGGER.error("dropping {} merged events, handing them over failed on shutdown", merged.size());
+        }
+        merged.clear();
+        index.clear();
+        windowHandedOver();
+    }
+
+    public long getEventsIn() {
+        return eventsIn;
+    }
+
+    public long getEventsOut() {
+        return eventsOut;
+    }
+
+    /**
+     * share of events saved by merging, 0 when nothing was merged
+     */
+    public double getReductionRatio() {
+        long in = eventsIn;
+        return in == 0 ? 0 : 1 - (double) eventsOut / in;
+    }
+
+    /**
+     * Open addressing (linear probing) from key to position in the merged list, reused between batches so
+     * merging does not allocate once it has grown to the batch size.
+     */
+    static final class KeyIndex {
+        private static final int MIN_CAPACITY = 16;
+
+        private Object[] keys = new Object[MIN_CAPACITY];
+        private int[] positions = new int[MIN_CAPACITY];
+        // slots in use, to clear without touching the whole table
+        private int[] used = new int[MIN_CAPACITY / 2];
+        private int size;
+
+        /**
+         * @return the position stored for the key, or -1 after storing <code>position</code> for it
+         */
+        int positionOf(Object key, int position) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (keys[slot] != null) {
+                if (keys[slot].equals(key))
+                    return positions[slot];
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            positions[slot] = position;
+            used[size++] = slot;
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            return -1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            for (int i = 0; i < size; i++) {
+                keys[used[i]] = null;
+            }
+            size = 0;
+        }
+
+        private void grow() {
+            Object[] oldKeys = keys;
+            int[] oldPositions = positions;
+            int[] oldUsed = used;
+            keys = new Object[oldKeys.length * 2];
+            positions = new int[oldKeys.length * 2];
+            used = Arrays.copyOf(oldUsed, oldKeys.length);
+            int mask = keys.length - 1;
+            for (int i = 0; i < size; i++) {
+                int oldSlot = oldUsed[i];
+                int slot = hash(oldKeys[oldSlot]) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[oldSlot];
+                positions[slot] = oldPositions[oldSlot];
+                used[i] = slot;
+            }
+        }
+
+        private static int hash(Object key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.collective.batchelor.util;
+
+/**
+ * Turns the events producers add into what the handler takes, called on the worker thread so encoders may reuse
+ * scratch buffers between calls.
+ */
+public interface Encoder<T, R> {
+    R encode(T event);
+}
@@ -0,0 +1,66 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Encodes each batch on the worker thread before handing it to the delegate. The encoded list is reused between
+ * batches, a failed batch is encoded again on retry. Events the encoder throws on are logged and skipped.
+ */
+public class EncodingBatchHandler<T, R> implements FlushableBatchHandler<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EncodingBatchHandler.class);
+
+    private final Encoder<? super T, ? extends R> encoder;
+    private final BatchHandler<R> delegate;
+    private final List<R> encoded = Lists.newArrayList();
+    private long skipped;
+
+    public EncodingBatchHandler(Encoder<? super T, ? extends R> encoder, BatchHandler<R> delegate) {
+        this.encoder = Preconditions.checkNotNull(encoder);
+        this.delegate = Preconditions.checkNotNull(delegate);
+    }
+
+    @Override
+    public boolean handle(List<T> batch) {
+        encoded.clear();
+        for (T event : batch) {
+            try {
+                encoded.add(encoder.encode(event));
+            } catch (RuntimeException e) {
+                skipped++;
+                LOGGER.error("encoding event failed, skipping it", e);
+            }
+        }
+        try {
+            return encoded.isEmpty() || delegate.handle(encoded);
+        } finally {
+            encoded.clear();
+        }
+    }
+
+    @Override
+    public ListenableFuture<Void> flushAsync() {
+        return delegate instanceof FlushableBatchHandler
+                ? ((FlushableBatchHandler<R>) delegate).flushAsync()
+                : Futures.<Void>immediateFuture(null);
+    }
+
+    @Override
+    public void done() {
+        delegate.done();
+    }
+
+    /**
+     * events skipped because encoding failed, only to be read from the worker thread or after done()
+     */
+    long getSkippedCount() {
+        return skipped;
+    }
+}
@@ -0,0 +1,405 @@
+package com.collective.batchelor.util;
+
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands every event to several handlers, each at its own pace. Events are stored once in a shared ring, every
+ * handler has its own worker thread, read cursor and retries. A slot is released once all handlers are done with
+ * it. By default a slow or failing handler blocks producers once it lags <code>capacity</code> events behind, with
+ * {@link LagPolicy#SKIP_AHEAD} it skips events instead and only hurts itself.
+ */
+public class FanOutBatchExecutor<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FanOutBatchExecutor.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final long MIN_JOIN_MILLIS = 100;
+
+    /**
+     * what happens once a handler lags <code>capacity</code> events behind
+     */
+    public enum LagPolicy {
+        /**
+         * producers wait for the handler
+         */
+        BLOCK,
+        /**
+         * the handler skips the oldest events it did not take yet, so it is left a batch less than the capacity behind
+         */
+        SKIP_AHEAD
+    }
+
+    class Sink extends Thread {
+        private final BatchHandler<T> handler;
+        private final List<T> batch;
+        private final Condition notEmpty = lock.newCondition();
+        // guarded by lock: next sequence not released, end of the batch taken, whether waiting on notEmpty
+        private long cursor;
+        private long taken;
+        private boolean waiting;
+        private long skipped;
+        private LagPolicy lagPolicy = LagPolicy.BLOCK;
+        private volatile boolean running = true;
+
+        private Sink(BatchHandler<T> handler) {
+            this.handler = handler;
+            this.batch = Lists.newArrayListWithCapacity(batchSize);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long end = awaitBatch();
+                    if (!batch.isEmpty()) {
+                        deliver();
+                        advance(this, end);
+                    }
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * Waits until a full batch is available or the drain time is up and takes it. Taken under the lock, a
+         * producer may skip this sink ahead and reuse the slots while the batch is delivered.
+         *
+         * @return the sequence the batch ends at (exclusive)
+         */
+        private long awaitBatch() throws InterruptedException {
+            lock.lock();
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(queueDrainTime);
+                waiting = true;
+                try {
+                    while (running && tail - cursor < batchSize && remaining > 0) {
+                        remaining = notEmpty.awaitNanos(remaining);
+                    }
+                } finally {
+                    waiting = false;
+                }
+                long end = Math.min(tail, cursor + batchSize);
+                for (long sequence = cursor; sequence < end; sequence++) {
+                    batch.add(slot(sequence));
+                }
+                taken = end;
+                return end;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void deliver() throws InterruptedException {
+            int attempt = 0;
+            while (!handler.handle(batch)) {
+                attempt++;
+                if (attempt == 1) {
+                    LOGGER.warn("{} failed to handle batch of {}, retrying", handler.getClass().getSimpleName(), batch.size());
+                }
+                Thread.sleep(retryPolicy.delayMillis(attempt));
+            }
+            if (attempt > 0) {
+                LOGGER.info("{} recovered after {} retries", handler.getClass().getSimpleName(), attempt);
+            }
+        }
+    }
+
+    private final int batchSize;
+    private final long queueDrainTime;
+    private final Object[] ring;
+    private final List<Sink> sinks;
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled whenever a cursor moves, for producers and flush
+    private final Condition released = lock.newCondition();
+    // next sequence to write and oldest sequence not released by all sinks, guarded by lock
+    private long tail;
+    private long head;
+    private volatile RetryPolicy retryPolicy;
+    private volatile BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+    private volatile boolean append = false;
+    private boolean stopped;
+
+    public FanOutBatchExecutor(int batchSize, int capacity, List<? extends BatchHandler<T>> handlers, long queueDrainTime, long retryInterval) {
+        Preconditions.checkArgument(batchSize > 0, "batch size must be > 0");
+        Preconditions.checkArgument(capacity >= batchSize, "capacity must be >= batch size");
+        Preconditions.checkArgument(!handlers.isEmpty(), "at least one handler is needed");
+        this.batchSize = batchSize;
+        this.queueDrainTime = queueDrainTime;
+        this.ring = new Object[capacity];
+        this.retryPolicy = RetryPolicy.fixed(retryInterval);
+        ImmutableList.Builder<Sink> builder = ImmutableList.builder();
+        for (BatchHandler<T> handler : handlers) {
+            builder.add(new Sink(handler));
+        }
+        this.sinks = builder.build();
+    }
+
+    public static <T> FanOutBatchExecutor<T> createAndStart(int batchSize, int capacity, List<? extends BatchHandler<T>> handlers, long queueDrainTime, long retryInterval) {
+        FanOutBatchExecutor<T> executor = new FanOutBatchExecutor<>(batchSize, capacity, handlers, queueDrainTime, retryInterval);
+        executor.start();
+        return executor;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T slot(long sequence) {
+        return (T) ring[(int) (sequence % ring.length)];
+    }
+
+    private void advance(Sink sink, long cursor) {
+        lock.lock();
+        try {
+            // the sink might have been skipped ahead while delivering
+            sink.cursor = Math.max(sink.cursor, cursor);
+            release();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * under the lock
+     */
+    private void release() {
+        long min = tail;
+        for (Sink each : sinks) {
+            min = Math.min(min, each.cursor);
+        }
+        // drop references to events all sinks are done with
+        for (; head < min; head++) {
+            ring[(int) (head % ring.length)] = null;
+        }
+        released.signalAll();
+    }
+
+    /**
+     * Moves the sinks that may skip and hold back the ring ahead, under the lock.
+     *
+     * @return true if that made room
+     */
+    private boolean skipAhead() {
+        long target = tail - ring.length + batchSize;
+        boolean moved = false;
+        for (Sink sink : sinks) {
+            if (sink.lagPolicy != LagPolicy.SKIP_AHEAD || sink.cursor >= target)
+                continue;
+            // what the sink took already is delivered
+            long from = Math.max(sink.cursor, sink.taken);
+            if (target > from) {
+                int events = (int) (target - from);
+                sink.skipped += events;
+                metrics.dropped(events);
+                LOGGER.warn("{} lags {} events behind, skipping {}", sink.handler.getClass().getSimpleName(), tail - from, events);
+            }
+            sink.cursor = target;
+            moved = true;
+        }
+        if (moved) {
+            release();
+        }
+        return tail - head < ring.length;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * used by all handlers, each counts its own attempts
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = Preconditions.checkNotNull(retryPolicy);
+    }
+
+    public void setMetrics(BatchMetrics metrics) {
+        this.metrics = Preconditions.checkNotNull(metrics);
+    }
+
+    /**
+     * for the handler at <code>index</code>, {@link LagPolicy#BLOCK} by default
+     */
+    public void setLagPolicy(int index, LagPolicy lagPolicy) {
+        Preconditions.checkNotNull(lagPolicy);
+        lock.lock();
+        try {
+            sinks.get(index).lagPolicy = lagPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * events the handler at <code>index</code> skipped because it lagged too far behind
+     */
+    public long getSkippedCount(int index) {
+        lock.lock();
+        try {
+            return sinks.get(index).skipped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * events not yet handled by all handlers
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return tail - head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * events the handler at <code>index</code> is behind
+     */
+    public long getLag(int index) {
+        lock.lock();
+        try {
+            return tail - sinks.get(index).cursor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void start() {
+        for (Sink sink : sinks) {
+            sink.setName("fanOutWorkerThread-" + THREAD_COUNTER.incrementAndGet());
+            sink.setPriority(Thread.MIN_PRIORITY);
+            sink.start();
+        }
+        append = true;
+    }
+
+    /**
+     * blocks while the slowest handler that does not skip ahead lags <code>capacity</code> events behind
+     */
+    public void add(T event) {
+        if (!append)
+            return;
+        lock.lock();
+        try {
+            while (tail - head >= ring.length && !skipAhead()) {
+                released.await();
+            }
+            ring[(int) (tail % ring.length)] = event;
+            tail++;
+            // only wake sinks waiting for the batch that just got full
+            for (Sink sink : sinks) {
+                if (sink.waiting && tail - sink.cursor >= batchSize) {
+                    sink.notEmpty.signal();
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.error("put failed", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * waits until all handlers handled the events added before
+     */
+    public void flush() {
+        flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return false if not all handlers handled the events added before in time
+     */
+    public boolean flush(long timeout, TimeUnit unit) {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            long target = tail;
+            long remaining = unit.toNanos(timeout);
+            while (head < target) {
+                if (remaining <= 0 || stopped)
+                    return false;
+                try {
+                    remaining = released.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void stop() {
+        stop(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops accepting events and waits up to <code>timeout</code> for all handlers to catch up. Events a handler
+     * did not get to by then are dropped for that handler. A handler still stuck in handle() after that is
+     * abandoned, done() is not called on it.
+     *
+     * @return true if all handlers handled all events
+     */
+    public boolean stop(long timeout, TimeUnit unit) {
+        append = false;
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        boolean flushed = flush(timeout, unit);
+        lock.lock();
+        try {
+            stopped = true;
+            for (Sink sink : sinks) {
+                sink.running = false;
+                if (sink.cursor < tail) {
+                    LOGGER.error("{} did not handle {} events before shutdown", sink.handler.getClass().getSimpleName(), tail - sink.cursor);
+                }
+                sink.notEmpty.signal();
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        boolean joined = true;
+        for (Sink sink : sinks) {
+            sink.interrupt();
+        }
+        for (Sink sink : sinks) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(timeoutNanos - (System.nanoTime() - start));
+            try {
+                sink.join(Math.max(MIN_JOIN_MILLIS, remainingMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (sink.isAlive()) {
+                LOGGER.warn("{} did not stop in time, abandoning it", sink.getName());
+                joined = false;
+                continue;
+            }
+            sink.handler.done();
+        }
+        return flushed && joined;
+    }
+}
@@ -0,0 +1,16 @@
+package com.collective.batchelor.util;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A handler that accepts a batch before it was delivered, e.g. to keep several batches on the wire or to merge
+ * them. {@link AsyncBatchExecutor#flushAsync()} and {@link AsyncBatchExecutor#stop(long, java.util.concurrent.TimeUnit)}
+ * wait for it, so events count as handled only once the handler is done with them.
+ */
+public interface FlushableBatchHandler<T> extends BatchHandler<T> {
+
+    /**
+     * completes when every batch accepted before was delivered or given up, may be called from any thread
+     */
+    ListenableFuture<Void> flushAsync();
+}
@@ -0,0 +1,87 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A priority lane of an {@link AsyncBatchExecutor}, see {@link AsyncBatchExecutor#setPriorityLanes(Lane.Selection, List)}.
+ * Every lane needs its own overflow policy instance, the counts are kept per policy.
+ */
+public final class Lane<T> {
+
+    public enum Selection {
+        /**
+         * a lane is only drained when all lanes before it are empty
+         */
+        STRICT,
+        /**
+         * lanes share the batches by weight, a busy lane can't starve the others
+         */
+        WEIGHTED
+    }
+
+    private final int capacity;
+    private final int weight;
+    private final OverflowPolicy<T> overflowPolicy;
+    final AtomicLong enqueued = new AtomicLong();
+    // one queue per partition
+    final List<BlockingQueue<T>> queues = new CopyOnWriteArrayList<>();
+
+    private Lane(int capacity, int weight, OverflowPolicy<T> overflowPolicy) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be > 0");
+        Preconditions.checkArgument(weight > 0, "weight must be > 0");
+        this.capacity = capacity;
+        this.weight = weight;
+        this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy);
+    }
+
+    public static <T> Lane<T> of(int capacity, OverflowPolicy<T> overflowPolicy) {
+        return new Lane<>(capacity, 1, overflowPolicy);
+    }
+
+    public static <T> Lane<T> of(int capacity, int weight, OverflowPolicy<T> overflowPolicy) {
+        return new Lane<>(capacity, weight, overflowPolicy);
+    }
+
+    /**
+     * per partition
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public OverflowPolicy<T> getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getDroppedCount() {
+        return overflowPolicy.getDroppedCount();
+    }
+
+    public long getRejectedCount() {
+        return overflowPolicy.getRejectedCount();
+    }
+
+    /**
+     * events queued in all partitions
+     */
+    public int getSize() {
+        int size = 0;
+        for (BlockingQueue<T> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+}
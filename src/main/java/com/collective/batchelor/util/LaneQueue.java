@@ -0,0 +1,252 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ForwardingBlockingQueue;
+import org.eclipse.jetty.util.ConcurrentArrayBlockingQueue;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queue of a worker with priority lanes. Producers add to a single lane through {@link #lane(int)}, the worker
+ * polls across all lanes by priority. Adding to the queue itself adds to the last lane. Only the worker polls, so
+ * the lane selection is not thread safe.
+ */
+class LaneQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final List<BlockingQueue<E>> lanes;
+    private final boolean weighted;
+    private final int[] weights;
+    private final int[] current;
+    private final Object notEmpty = new Object();
+    private volatile int waiting;
+
+    LaneQueue(List<Lane<E>> lanes, Lane.Selection selection) {
+        ImmutableList.Builder<BlockingQueue<E>> builder = ImmutableList.builder();
+        this.weights = new int[lanes.size()];
+        for (int i = 0; i < lanes.size(); i++) {
+            Lane<E> lane = lanes.get(i);
+            BlockingQueue<E> queue = new SignallingQueue(new ConcurrentArrayBlockingQueue.Bounded<E>(lane.getCapacity()));
+            lane.queues.add(queue);
+            builder.add(queue);
+            weights[i] = lane.getWeight();
+        }
+        this.lanes = builder.build();
+        this.weighted = selection == Lane.Selection.WEIGHTED;
+        this.current = new int[lanes.size()];
+    }
+
+    BlockingQueue<E> lane(int index) {
+        return lanes.get(index);
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            int selected = weighted ? selectWeighted() : selectStrict();
+            if (selected < 0)
+                return null;
+            E e = lanes.get(selected).poll();
+            // might have been taken by a drop oldest policy in between
+            if (e != null)
+                return e;
+        }
+    }
+
+    private int selectStrict() {
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty())
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * smooth weighted round robin over the lanes that have events
+     */
+    private int selectWeighted() {
+        int selected = -1;
+        int total = 0;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty()) {
+                current[i] += weights[i];
+                total += weights[i];
+                if (selected < 0 || current[i] > current[selected]) {
+                    selected = i;
+                }
+            }
+        }
+        if (selected >= 0) {
+            current[selected] -= total;
+        }
+        return selected;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        while (true) {
+            E e = poll();
+            if (e != null)
+                return e;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return null;
+            synchronized (notEmpty) {
+                waiting++;
+                try {
+                    // re-check after announcing ourselves, an offer in between would not have signalled
+                    if (isEmpty()) {
+                        TimeUnit.NANOSECONDS.timedWait(notEmpty, remaining);
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private void signal() {
+        if (waiting > 0) {
+            synchronized (notEmpty) {
+                notEmpty.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public E peek() {
+        for (BlockingQueue<E> lane : lanes) {
+            E e = lane.peek();
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        return lastLane().offer(e);
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        lastLane().put(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        return lastLane().offer(e, timeout, unit);
+    }
+
+    private BlockingQueue<E> lastLane() {
+        return lanes.get(lanes.size() - 1);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        int remaining = 0;
+        for (BlockingQueue<E> lane : lanes) {
+            remaining += lane.remainingCapacity();
+        }
+        return remaining;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (BlockingQueue<E> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (BlockingQueue<E> lane : lanes) {
+            if (!lane.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return Iterators.concat(Iterators.transform(lanes.iterator(), new Function<BlockingQueue<E>, Iterator<E>>() {
+            @Override
+            public Iterator<E> apply(BlockingQueue<E> lane) {
+                return lane.iterator();
+            }
+        }));
+    }
+
+    /**
+     * wakes up the polling worker when an event is added to a lane
+     */
+    private class SignallingQueue extends ForwardingBlockingQueue<E> {
+        private final BlockingQueue<E> delegate;
+
+        SignallingQueue(BlockingQueue<E> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected BlockingQueue<E> delegate() {
+            return delegate;
+        }
+
+        @Override
+        public boolean offer(E e) {
+            boolean added = super.offer(e);
+            signal();
+            return added;
+        }
+
+        @Override
+        public boolean add(E e) {
+            boolean added = super.add(e);
+            signal();
+            return added;
+        }
+
+        @Override
+        public void put(E e) throws InterruptedException {
+            super.put(e);
+            signal();
+        }
+
+        @Override
+        public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+            boolean added = super.offer(e, timeout, unit);
+            signal();
+            return added;
+        }
+    }
+}
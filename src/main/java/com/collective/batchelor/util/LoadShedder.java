@@ -0,0 +1,128 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples events out before they are queued once the queue fills up, see
+ * {@link AsyncBatchExecutor#setLoadShedder(LoadShedder)}. Below the low watermark everything is kept, above it the
+ * keep rate of an event class falls linearly to its min keep rate at a full queue. Counts are only kept while
+ * shedding, so <code>(kept + sampledOut) / kept</code> of a class is the weight of its delivered events.
+ * Only bounded queues ever shed.
+ */
+public final class LoadShedder<T> {
+
+    private static final Object ALL = "all";
+
+    private final float lowWatermark;
+    private final double defaultMinKeepRate;
+    private final Function<? super T, ?> classifier;
+    private final ConcurrentMap<Object, Double> minKeepRates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Object, Counts> counts = new ConcurrentHashMap<>();
+
+    private static final class Counts {
+        final AtomicLong kept = new AtomicLong();
+        final AtomicLong sampledOut = new AtomicLong();
+    }
+
+    /**
+     * all events are one class
+     */
+    public LoadShedder(float lowWatermark, double minKeepRate) {
+        this(lowWatermark, minKeepRate, Functions.constant(ALL));
+    }
+
+    /**
+     * @param classifier gives the class of an event, classes without their own min keep rate use
+     *                   <code>defaultMinKeepRate</code>
+     */
+    public LoadShedder(float lowWatermark, double defaultMinKeepRate, Function<? super T, ?> classifier) {
+        Preconditions.checkArgument(lowWatermark >= 0 && lowWatermark < 1, "low watermark must be in [0, 1)");
+        checkRate(defaultMinKeepRate);
+        this.lowWatermark = lowWatermark;
+        this.defaultMinKeepRate = defaultMinKeepRate;
+        this.classifier = Preconditions.checkNotNull(classifier);
+    }
+
+    private static void checkRate(double rate) {
+        Preconditions.checkArgument(rate >= 0 && rate <= 1, "keep rate must be in [0, 1]");
+    }
+
+    /**
+     * 1 keeps the class at any fill, 0 sheds all of it at a full queue
+     */
+    public void setMinKeepRate(Object eventClass, double minKeepRate) {
+        checkRate(minKeepRate);
+        minKeepRates.put(eventClass, minKeepRate);
+    }
+
+    public float getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public double getKeepRate(Object eventClass, float fillFraction) {
+        if (fillFraction <= lowWatermark)
+            return 1;
+        Double rate = minKeepRates.get(eventClass);
+        double minKeepRate = rate == null ? defaultMinKeepRate : rate;
+        double load = Math.min(1, (fillFraction - lowWatermark) / (1 - lowWatermark));
+        return 1 - (1 - minKeepRate) * load;
+    }
+
+    /**
+     * @return false if the event should be sampled out
+     */
+    boolean keep(T event, float fillFraction) {
+        if (fillFraction <= lowWatermark)
+            return true;
+        Object eventClass = classifier.apply(event);
+        double rate = getKeepRate(eventClass, fillFraction);
+        boolean keep = rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+        Counts classCounts = counts(eventClass);
+        (keep ? classCounts.kept : classCounts.sampledOut).incrementAndGet();
+        return keep;
+    }
+
+    private Counts counts(Object eventClass) {
+        Counts classCounts = counts.get(eventClass);
+        if (classCounts == null) {
+            Counts created = new Counts();
+            classCounts = counts.putIfAbsent(eventClass, created);
+            if (classCounts == null) {
+                classCounts = created;
+            }
+        }
+        return classCounts;
+    }
+
+    /**
+     * events of the class kept while shedding
+     */
+    public long getKeptCount(Object eventClass) {
+        Counts classCounts = counts.get(eventClass);
+        return classCounts == null ? 0 : classCounts.kept.get();
+    }
+
+    public long getSampledOutCount(Object eventClass) {
+        Counts classCounts = counts.get(eventClass);
+        return classCounts == null ? 0 : classCounts.sampledOut.get();
+    }
+
+    /**
+     * of all classes
+     */
+    public long getSampledOutCount() {
+        long sampledOut = 0;
+        for (Map.Entry<Object, Counts> entry : counts.entrySet()) {
+            sampledOut += entry.getValue().sampledOut.get();
+        }
+        return sampledOut;
+    }
+}
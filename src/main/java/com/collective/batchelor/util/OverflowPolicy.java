@@ -0,0 +1,124 @@
+package com.collective.batchelor.util;
+
+import com.collective.batchelor.metrics.BatchMetrics;
+import com.collective.batchelor.metrics.NoopBatchMetrics;
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What {@link AsyncBatchExecutor#add(Object)} does when the queue is full.
+ * A policy keeps its own counters, so use one instance per executor.
+ */
+public abstract class OverflowPolicy<T> {
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    volatile BatchMetrics metrics = NoopBatchMetrics.INSTANCE;
+
+    /**
+     * wait until there is space - the default, this stalls the caller as long as the handler is stuck
+     */
+    public static <T> OverflowPolicy<T> block() {
+        return new OverflowPolicy<T>() {
+            @Override
+            void enqueue(BlockingQueue<T> queue, T event) throws InterruptedException {
+                queue.put(event);
+            }
+        };
+    }
+
+    /**
+     * wait up to the timeout for space, then drop the event
+     */
+    public static <T> OverflowPolicy<T> blockFor(final long timeout, final TimeUnit unit) {
+        return new OverflowPolicy<T>() {
+            @Override
+            void enqueue(BlockingQueue<T> queue, T event) throws InterruptedException {
+                if (!queue.offer(event, timeout, unit)) {
+                    reject();
+                    drop(1);
+                }
+            }
+        };
+    }
+
+    /**
+     * drop the event that should be added
+     */
+    public static <T> OverflowPolicy<T> dropNewest() {
+        return new OverflowPolicy<T>() {
+            @Override
+            void enqueue(BlockingQueue<T> queue, T event) {
+                if (!queue.offer(event)) {
+                    reject();
+                    drop(1);
+                }
+            }
+        };
+    }
+
+    /**
+     * make room by dropping the oldest queued events
+     */
+    public static <T> OverflowPolicy<T> dropOldest() {
+        return new OverflowPolicy<T>() {
+            @Override
+            void enqueue(BlockingQueue<T> queue, T event) {
+                while (!queue.offer(event)) {
+                    if (queue.poll() != null) {
+                        drop(1);
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * hand the event to the fallback on the calling thread, it is dropped if the fallback fails.
+     * The fallback is not closed by the executor.
+     */
+    public static <T> OverflowPolicy<T> fallbackTo(final BatchHandler<T> fallback) {
+        Preconditions.checkNotNull(fallback);
+        return new OverflowPolicy<T>() {
+            @Override
+            void enqueue(BlockingQueue<T> queue, T event) {
+                if (!queue.offer(event)) {
+                    reject();
+                    if (!fallback.handle(Collections.singletonList(event))) {
+                        drop(1);
+                    }
+                }
+            }
+        };
+    }
+
+    abstract void enqueue(BlockingQueue<T> queue, T event) throws InterruptedException;
+
+    void drop(int events) {
+        dropped.addAndGet(events);
+        metrics.dropped(events);
+    }
+
+    void reject() {
+        rejected.incrementAndGet();
+        metrics.rejected();
+    }
+
+    /**
+     * events that were lost because of a full queue
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * events that could not be queued, including the ones passed to a fallback
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,8 @@
+package com.collective.batchelor.util;
+
+/**
+ * Routes an event to one of the workers of a partitioned {@link AsyncBatchExecutor}.
+ */
+public interface Partitioner<T> {
+    int partition(T event, int partitions);
+}
@@ -0,0 +1,48 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class Partitioners {
+
+    private Partitioners() {
+    }
+
+    /**
+     * spreads events evenly over all partitions, no ordering guarantees
+     */
+    public static <T> Partitioner<T> roundRobin() {
+        return new Partitioner<T>() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public int partition(T event, int partitions) {
+                return (counter.getAndIncrement() & Integer.MAX_VALUE) % partitions;
+            }
+        };
+    }
+
+    /**
+     * events with equal keys always end up in the same partition, so their order is kept
+     */
+    public static <T> Partitioner<T> byKey(final Function<? super T, ?> keyFunction) {
+        Preconditions.checkNotNull(keyFunction);
+        return new Partitioner<T>() {
+            @Override
+            public int partition(T event, int partitions) {
+                Object key = keyFunction.apply(event);
+                if (key == null)
+                    return 0;
+                return (spread(key.hashCode()) & Integer.MAX_VALUE) % partitions;
+            }
+        };
+    }
+
+    static int spread(int hash) {
+        // same bit mixing as java.util.HashMap so poor hash codes don't pile up in one partition
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+}
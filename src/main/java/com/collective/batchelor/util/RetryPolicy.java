@@ -0,0 +1,50 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How long the worker waits before handing a failed batch to the handler again.
+ */
+public abstract class RetryPolicy {
+
+    /**
+     * same delay after every failure
+     */
+    public static RetryPolicy fixed(final long intervalMillis) {
+        Preconditions.checkArgument(intervalMillis >= 0, "interval must be >= 0");
+        return new RetryPolicy() {
+            @Override
+            public long delayMillis(int attempt) {
+                return intervalMillis;
+            }
+        };
+    }
+
+    /**
+     * Doubles the delay after every failure up to <code>maxMillis</code>. A random part of up to
+     * <code>jitter</code> (0..1) of the delay is taken off, so many clients don't retry in lockstep.
+     */
+    public static RetryPolicy exponentialBackoff(final long initialMillis, final long maxMillis, final double jitter) {
+        Preconditions.checkArgument(initialMillis > 0, "initial delay must be > 0");
+        Preconditions.checkArgument(maxMillis >= initialMillis, "max delay must be >= initial delay");
+        Preconditions.checkArgument(jitter >= 0 && jitter <= 1, "jitter must be between 0 and 1");
+        return new RetryPolicy() {
+            @Override
+            public long delayMillis(int attempt) {
+                // cap the shift, we'd overflow long long before reaching any sane max
+                long delay = Math.min(maxMillis, initialMillis << Math.min(attempt - 1, 30));
+                if (jitter > 0) {
+                    delay -= (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+                }
+                return delay;
+            }
+        };
+    }
+
+    /**
+     * @param attempt number of failed attempts so far, starting with 1
+     */
+    public abstract long delayMillis(int attempt);
+}
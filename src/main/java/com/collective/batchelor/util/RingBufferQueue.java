@@ -0,0 +1,205 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pre-allocated bounded queue, lock-free for any number of producers and consumers
+ * (one sequence number per slot, see Dmitry Vyukov's bounded MPMC queue).
+ * Waiting for space or events is done with the given {@link WaitStrategy}.
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+    private final int capacity;
+    private final int slots;
+    private final AtomicReferenceArray<E> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final WaitStrategy.Waiter notEmpty;
+    private final WaitStrategy.Waiter notFull;
+
+    public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+        Preconditions.checkArgument(capacity > 0, "ring buffer needs a capacity > 0");
+        this.capacity = capacity;
+        // a single slot can't tell "full" from "empty in the next lap" apart
+        this.slots = Math.max(2, capacity);
+        this.buffer = new AtomicReferenceArray<>(slots);
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            sequences.set(i, i);
+        }
+        this.notEmpty = waitStrategy.newWaiter();
+        this.notFull = waitStrategy.newWaiter();
+    }
+
+    @Override
+    public boolean offer(E e) {
+        Preconditions.checkNotNull(e);
+        while (true) {
+            long position = tail.get();
+            int index = index(position);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (slots != capacity && position - head.get() >= capacity)
+                    return false;
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer.lazySet(index, e);
+                    sequences.set(index, position + 1);
+                    notEmpty.signal();
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public E poll() {
+        while (true) {
+            long position = head.get();
+            int index = index(position);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E e = buffer.get(index);
+                    buffer.lazySet(index, null);
+                    sequences.set(index, position + slots);
+                    notFull.signal();
+                    return e;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long nanos = unit.toNanos(timeout);
+        int round = 0;
+        while (!offer(e)) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            long remaining = nanos - (System.nanoTime() - start);
+            if (remaining <= 0)
+                return false;
+            long token = notFull.prepare();
+            if (offer(e)) {
+                notFull.cancel();
+                return true;
+            }
+            notFull.await(token, round++, remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        long nanos = unit.toNanos(timeout);
+        int round = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            // elapsed time, nanoTime may be negative and a deadline would overflow
+            long remaining = nanos - (System.nanoTime() - start);
+            if (remaining <= 0)
+                return null;
+            long token = notEmpty.prepare();
+            if ((e = poll()) != null) {
+                notEmpty.cancel();
+                return e;
+            }
+            notEmpty.await(token, round++, remaining);
+        }
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        long position = head.get();
+        int index = index(position);
+        if (sequences.get(index) - (position + 1) == 0) {
+            return buffer.get(index);
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        // read head first, so a concurrent poll can't make the size negative
+        long h = head.get();
+        long size = tail.get() - h;
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * weakly consistent snapshot, removal is not supported
+     */
+    @Override
+    public Iterator<E> iterator() {
+        List<E> snapshot = new ArrayList<>(size());
+        for (long position = head.get(), end = tail.get(); position < end; position++) {
+            E e = buffer.get(index(position));
+            if (e != null) {
+                snapshot.add(e);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    private int index(long position) {
+        return (int) (position % slots);
+    }
+}
@@ -0,0 +1,146 @@
+package com.collective.batchelor.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * How a {@link RingBufferQueue} waits for space (producers) or events (worker).
+ * Ordered from cheapest on cpu to lowest latency.
+ */
+public enum WaitStrategy {
+    /**
+     * park on a condition, producers and worker wake each other up
+     */
+    BLOCKING {
+        @Override
+        Waiter newWaiter() {
+            return new BlockingWaiter();
+        }
+    },
+    /**
+     * spin, then yield, then park for short periods - no signalling needed
+     */
+    SLEEPING {
+        @Override
+        Waiter newWaiter() {
+            return new SleepingWaiter();
+        }
+    },
+    /**
+     * spin, then yield - burns a core while idle
+     */
+    YIELDING {
+        @Override
+        Waiter newWaiter() {
+            return new YieldingWaiter();
+        }
+    },
+    /**
+     * spin only - burns a core while idle, lowest latency
+     */
+    BUSY_SPIN {
+        @Override
+        Waiter newWaiter() {
+            return new Waiter();
+        }
+    };
+
+    private static final int SPIN_ROUNDS = 100;
+    private static final int YIELD_ROUNDS = 200;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    abstract Waiter newWaiter();
+
+    /**
+     * Usage: <code>token = prepare()</code>, re-check the queue, then either <code>cancel()</code> or
+     * <code>await(token, ...)</code>. This closes the window between the check and the wait for
+     * strategies that rely on signals.
+     */
+    static class Waiter {
+        long prepare() {
+            return 0;
+        }
+
+        void cancel() {
+        }
+
+        void await(long token, int round, long remainingNanos) throws InterruptedException {
+        }
+
+        void signal() {
+        }
+    }
+
+    static class YieldingWaiter extends Waiter {
+        @Override
+        void await(long token, int round, long remainingNanos) {
+            if (round >= SPIN_ROUNDS)
+                Thread.yield();
+        }
+    }
+
+    static class SleepingWaiter extends Waiter {
+        @Override
+        void await(long token, int round, long remainingNanos) {
+            if (round < SPIN_ROUNDS)
+                return;
+            if (round < YIELD_ROUNDS) {
+                Thread.yield();
+                return;
+            }
+            LockSupport.parkNanos(Math.min(SLEEP_NANOS, remainingNanos));
+        }
+    }
+
+    static class BlockingWaiter extends Waiter {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile long generation;
+
+        @Override
+        long prepare() {
+            waiters.incrementAndGet();
+            return generation;
+        }
+
+        @Override
+        void cancel() {
+            waiters.decrementAndGet();
+        }
+
+        @Override
+        void await(long token, int round, long remainingNanos) throws InterruptedException {
+            try {
+                lock.lockInterruptibly();
+                try {
+                    long remaining = remainingNanos;
+                    while (generation == token && remaining > 0) {
+                        remaining = changed.awaitNanos(remaining);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        @Override
+        void signal() {
+            // the common case - nobody waits - is a single volatile read
+            if (waiters.get() == 0)
+                return;
+            lock.lock();
+            try {
+                generation++;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.collective.batchelor.util;
+
+/**
+ * Approximate size of an event in bytes, must return the same weight for the same event every time.
+ */
+public interface Weigher<T> {
+    int weigh(T event);
+}
@@ -0,0 +1,107 @@
+package com.collective.batchelor.file;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AvroBatchFileWriterTest {
+
+    private static final Schema SCHEMA = new Schema.Parser().parse(
+            "{\"type\": \"record\", \"name\": \"Event\", \"fields\": [{\"name\": \"id\", \"type\": \"int\"}]}");
+
+    private final File file = new File("test.avro");
+
+    @After
+    public void cleanUp() {
+        DateTimeUtils.setCurrentMillisSystem();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void writesContainerFile() throws IOException {
+        AvroBatchFileWriter<GenericRecord> fileWriter = new AvroBatchFileWriter<>(file.getPath(), SCHEMA);
+        assertThat(fileWriter.handle(Arrays.asList(event(1), event(2)))).isTrue();
+        assertThat(fileWriter.handle(Arrays.asList(event(3)))).isTrue();
+        fileWriter.done();
+        assertThat(readIds(file)).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void doesAppendToFile() throws IOException {
+        AvroBatchFileWriter<GenericRecord> fileWriter = new AvroBatchFileWriter<>(file.getPath(), SCHEMA);
+        fileWriter.handle(Arrays.asList(event(1), event(2)));
+        fileWriter.done();
+        fileWriter = new AvroBatchFileWriter<>(file.getPath(), SCHEMA, CodecFactory.nullCodec(), 100);
+        fileWriter.handle(Arrays.asList(event(3)));
+        fileWriter.done();
+        assertThat(readIds(file)).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void dropsEventsThatCanNotBeEncoded() throws IOException {
+        AvroBatchFileWriter<GenericRecord> fileWriter = new AvroBatchFileWriter<>(file.getPath(), SCHEMA);
+        GenericRecord broken = new GenericData.Record(SCHEMA);
+        broken.put("id", "not a number");
+        assertThat(fileWriter.handle(Arrays.asList(event(1), broken, event(2)))).isTrue();
+        fileWriter.done();
+        assertThat(readIds(file)).containsExactly(1, 2);
+    }
+
+    @Test
+    public void writesSeveralBlocks() throws IOException {
+        AvroBatchFileWriter<GenericRecord> fileWriter = new AvroBatchFileWriter<>(file.getPath(), SCHEMA, CodecFactory.deflateCodec(1), 64);
+        for (int i = 0; i < 100; i++) {
+            fileWriter.handle(Arrays.asList(event(i)));
+        }
+        assertThat(fileWriter.getBytesWritten()).isGreaterThan(0);
+        fileWriter.done();
+        assertThat(readIds(file)).hasSize(100);
+    }
+
+    @Test
+    public void rollsHourly() throws IOException {
+        DateTimeUtils.setCurrentMillisFixed(1376407403999L);
+        RollingFileBatchHandler<GenericRecord> rolling = AvroBatchFileWriter.rolling("test.avro", 0, SCHEMA);
+        rolling.handle(Arrays.asList(event(1)));
+        rolling.done();
+        File rolled = new File(rolling.currentFile);
+        try {
+            assertThat(rolling.currentFile).isEqualTo("test-2013-08-13T15.avro");
+            assertThat(readIds(rolled)).containsExactly(1);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            rolled.delete();
+        }
+    }
+
+    private static GenericRecord event(int id) {
+        GenericRecord record = new GenericData.Record(SCHEMA);
+        record.put("id", id);
+        return record;
+    }
+
+    private static List<Integer> readIds(File file) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DataFileReader<GenericRecord> reader = new DataFileReader<>(file, new GenericDatumReader<GenericRecord>(SCHEMA))) {
+            for (GenericRecord record : reader) {
+                ids.add((Integer) record.get("id"));
+            }
+        }
+        return ids;
+    }
+}
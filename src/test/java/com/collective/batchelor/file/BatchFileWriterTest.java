@@ -1,16 +1,21 @@
 package com.collective.batchelor.file;
 
+import com.google.common.io.CharStreams;
 import org.junit.Test;
 import org.mockito.Mockito;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.anyString;
@@ -64,4 +69,28 @@ public class BatchFileWriterTest {
         verify(writer).close();
     }
 
+    @Test
+    public void canWriteGzipAndAppendToIt() throws IOException {
+        File file = new File("test.txt.gz");
+        try {
+            BatchFileWriter fileWriter = new BatchFileWriter(file.getAbsolutePath(), Compression.gzip(1));
+            assertThat(fileWriter.handle(Arrays.asList("test 1-2", "test 3-4"))).isTrue();
+            fileWriter.done();
+            fileWriter = new BatchFileWriter(file.getAbsolutePath(), Compression.gzip());
+            assertThat(fileWriter.handle(Arrays.asList("test 5-6"))).isTrue();
+            fileWriter.done();
+            assertThat(fileWriter.getBytesWritten()).isGreaterThan(0).isLessThan(file.length());
+            assertThat(readGzipLines(file)).containsExactly("test 1-2", "test 3-4", "test 5-6");
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    static List<String> readGzipLines(File file) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            return CharStreams.readLines(new InputStreamReader(in, Charset.forName("UTF-8")));
+        }
+    }
+
 }
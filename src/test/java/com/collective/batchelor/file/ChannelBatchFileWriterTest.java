@@ -0,0 +1,214 @@
+package com.collective.batchelor.file;
+
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ChannelBatchFileWriterTest {
+
+    private final File file = new File("test-channel.txt");
+
+    @After
+    public void deleteFile() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void writesEveryBatchWithFlushPolicy() throws IOException {
+        ChannelBatchFileWriter writer = new ChannelBatchFileWriter(file.getAbsolutePath());
+        assertThat(writer.handle(Arrays.asList("test 1-2", "t\u00e4st 3-4"))).isTrue();
+        // visible before done()
+        assertThat(Files.readAllLines(file.toPath(), Charsets.UTF_8)).containsExactly("test 1-2", "t\u00e4st 3-4");
+        assertThat(writer.getBytesWritten()).isEqualTo(19);
+        writer.done();
+    }
+
+    @Test
+    public void doesAppendToFile() throws IOException {
+        ChannelBatchFileWriter writer = new ChannelBatchFileWriter(file.getAbsolutePath(), Charsets.UTF_8, SyncPolicy.forcePerBatch());
+        writer.handle(Arrays.asList("a"));
+        writer.done();
+        writer = new ChannelBatchFileWriter(file.getAbsolutePath(), Charsets.UTF_8, SyncPolicy.groupCommit(10));
+        writer.handle(Arrays.asList("b"));
+        writer.done();
+        assertThat(Files.readAllLines(file.toPath(), Charsets.UTF_8)).containsExactly("a", "b");
+    }
+
+    @Test
+    public void buffersWithoutSyncUntilDone() throws IOException {
+        ChannelBatchFileWriter writer = new ChannelBatchFileWriter(file.getAbsolutePath(), Charset.forName("ISO-8859-1"), SyncPolicy.none());
+        writer.handle(Arrays.asList("t\u00e4st"));
+        assertThat(file.length()).isEqualTo(0);
+        writer.done();
+        assertThat(file.length()).isEqualTo(5);
+        assertThat(Files.readAllLines(file.toPath(), Charset.forName("ISO-8859-1"))).containsExactly("t\u00e4st");
+    }
+
+    @Test
+    public void canWriteBatchesLargerThanOneBuffer() throws IOException {
+        List<String> batch = new ArrayList<>();
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        for (int i = 0; i < 200; i++) {
+            batch.add(i + new String(chars));
+        }
+        ChannelBatchFileWriter writer = new ChannelBatchFileWriter(file.getAbsolutePath());
+        writer.handle(batch);
+        writer.handle(batch);
+        writer.done();
+        List<String> lines = Files.readAllLines(file.toPath(), Charsets.UTF_8);
+        assertThat(lines).hasSize(400);
+        assertThat(lines.get(399)).isEqualTo(batch.get(199));
+    }
+
+    @Test
+    public void failedWriteIsReportedAndRetriedWithoutDuplicates() throws IOException {
+        FailingChannel channel = new FailingChannel(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        ChannelBatchFileWriter writer = new ChannelBatchFileWriter(channel, Charsets.UTF_8, SyncPolicy.flushPerBatch());
+        List<String> batch = Arrays.asList("a", "b");
+        channel.failWrites = 1;
+        assertThat(writer.handle(batch)).isFalse();
+        assertThat(writer.handle(batch)).isTrue();
+        assertThat(writer.handle(Arrays.asList("c"))).isTrue();
+        writer.done();
+        assertThat(Files.readAllLines(file.toPath(), Charsets.UTF_8)).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void failedForceIsReportedAndRetried() throws IOException {
+        FailingChannel channel = new FailingChannel(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+        ChannelBatchFileWriter writer = new ChannelBatchFileWriter(channel, Charsets.UTF_8, SyncPolicy.forcePerBatch());
+        List<String> batch = Arrays.asList("a");
+        channel.failForces = 1;
+        assertThat(writer.handle(batch)).isFalse();
+        assertThat(writer.handle(batch)).isTrue();
+        assertThat(channel.forces).isEqualTo(1);
+        writer.done();
+        assertThat(Files.readAllLines(file.toPath(), Charsets.UTF_8)).containsExactly("a");
+    }
+
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel delegate;
+        private int failWrites;
+        private int failForces;
+        private int forces;
+
+        private FailingChannel(FileChannel delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if (failWrites > 0) {
+                failWrites--;
+                throw new IOException("disk full");
+            }
+            return delegate.write(srcs, offset, length);
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failForces > 0) {
+                failForces--;
+                throw new IOException("device gone");
+            }
+            forces++;
+            delegate.force(metaData);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return delegate.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return delegate.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.collective.batchelor.file;
+
+import com.collective.batchelor.util.BatchHandler;
+import com.google.common.base.Charsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RolledFileReplayerTest {
+
+    // 2013-08-13T15:00 UTC
+    private static final long HOUR_15 = 1376406000000L;
+    private static final long HOUR = 3600000L;
+
+    private File directory;
+    private final List<String> replayed = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void createFiles() throws IOException {
+        directory = Files.createTempDirectory("replay").toFile();
+        write("test-2013-08-13T14.log", "a0\n");
+        write("test-2013-08-13T15.log", "b0\nb1\nb2\n");
+        write("test-2013-08-13T15-1.log", "c0\nc1 is a longer line\nc2");
+        gzip("test-2013-08-13T16.log.gz", "d0\nd1\nd2\nd3\n");
+        write("test-2013-08-13T18.log", "e0\n");
+        write("other-2013-08-13T15.log", "x0\n");
+    }
+
+    @After
+    public void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void findsFilesOfTimeRangeInOrder() {
+        RolledFileReplayer replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 10);
+        List<File> files = replayer.findFiles(HOUR_15, HOUR_15 + 2 * HOUR);
+        assertThat(files).containsExactly(file("test-2013-08-13T15.log"), file("test-2013-08-13T15-1.log"), file("test-2013-08-13T16.log.gz"));
+    }
+
+    @Test
+    public void replaysLinesOfEveryFileInOrder() throws Exception {
+        RolledFileReplayer replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 2);
+        replayer.setThreads(3);
+        // lines cross the mapped windows
+        replayer.mappedBytes = 4;
+        assertThat(replayer.replay(HOUR_15, HOUR_15 + 2 * HOUR)).isEqualTo(10);
+        assertThat(replayed).containsOnly("b0", "b1", "b2", "c0", "c1 is a longer line", "c2", "d0", "d1", "d2", "d3");
+        assertInOrder("b0", "b1", "b2");
+        assertInOrder("c0", "c1 is a longer line", "c2");
+        assertInOrder("d0", "d1", "d2", "d3");
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        File checkpoint = file("replay.properties");
+        BatchHandler<String> failing = new CollectingHandler() {
+            @Override
+            public boolean handle(List<String> batch) {
+                if (batch.contains("d2"))
+                    throw new IllegalStateException("down");
+                return super.handle(batch);
+            }
+        };
+        RolledFileReplayer replayer = new RolledFileReplayer(path("test.log"), failing, 2);
+        replayer.setCheckpointFile(checkpoint);
+        try {
+            replayer.replay(HOUR_15, HOUR_15 + 2 * HOUR);
+        } catch (IllegalStateException expected) {
+        }
+        assertThat(replayed).contains("d0", "d1").doesNotContain("d2");
+
+        replayed.clear();
+        replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 2);
+        replayer.setCheckpointFile(checkpoint);
+        replayer.replay(HOUR_15, HOUR_15 + 2 * HOUR);
+        assertThat(replayed).containsExactly("d2", "d3");
+    }
+
+    @Test
+    public void doesNotSkipEarlierPartWhenPlainFileIsCompressedInBetween() throws Exception {
+        // a restart continued the plain file after the first part of the hour was compressed
+        gzip("test-2013-08-13T17.log.gz", "y0\n");
+        write("test-2013-08-13T17.log", "z0\nz1\nz2\n");
+        File checkpoint = file("replay.properties");
+        BatchHandler<String> failing = new CollectingHandler() {
+            @Override
+            public boolean handle(List<String> batch) {
+                if (batch.contains("z2"))
+                    throw new IllegalStateException("down");
+                return super.handle(batch);
+            }
+        };
+        RolledFileReplayer replayer = new RolledFileReplayer(path("test.log"), failing, 2);
+        replayer.setCheckpointFile(checkpoint);
+        try {
+            replayer.replay(HOUR_15 + 2 * HOUR, HOUR_15 + 3 * HOUR);
+        } catch (IllegalStateException expected) {
+        }
+        assertThat(replayed).containsExactly("y0", "z0", "z1");
+
+        RollingFileBatchHandler.compress(file("test-2013-08-13T17.log"), Compression.gzip());
+        replayed.clear();
+        replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 2);
+        replayer.setCheckpointFile(checkpoint);
+        replayer.replay(HOUR_15 + 2 * HOUR, HOUR_15 + 3 * HOUR);
+        // the plain part is replayed again, but nothing is lost
+        assertThat(replayed).containsExactly("z0", "z1", "z2");
+    }
+
+    @Test
+    public void replaysFileFromStartWhenItGotShorter() throws Exception {
+        File checkpoint = file("replay.properties");
+        RolledFileReplayer replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 2);
+        replayer.setCheckpointFile(checkpoint);
+        replayer.replay(HOUR_15 - HOUR, HOUR_15);
+        assertThat(replayed).containsExactly("a0");
+        replayer.replay(HOUR_15 - HOUR, HOUR_15);
+        assertThat(replayed).containsExactly("a0");
+
+        write("test-2013-08-13T14.log", "f\n");
+        replayed.clear();
+        replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 2);
+        replayer.setCheckpointFile(checkpoint);
+        replayer.replay(HOUR_15 - HOUR, HOUR_15);
+        assertThat(replayed).containsExactly("f");
+    }
+
+    @Test
+    public void limitsRate() throws Exception {
+        RolledFileReplayer replayer = new RolledFileReplayer(path("test.log"), new CollectingHandler(), 2);
+        replayer.setEventsPerSecond(50);
+        long start = System.currentTimeMillis();
+        replayer.replay(HOUR_15, HOUR_15 + 2 * HOUR);
+        // the first permits are free
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(100);
+        assertThat(replayed).hasSize(10);
+    }
+
+    private void assertInOrder(String... lines) {
+        int last = -1;
+        for (String line : lines) {
+            int index = replayed.indexOf(line);
+            assertThat(index).isGreaterThan(last);
+            last = index;
+        }
+    }
+
+    private String path(String name) {
+        return file(name).getPath();
+    }
+
+    private File file(String name) {
+        return new File(directory, name).getAbsoluteFile();
+    }
+
+    private void write(String name, String content) throws IOException {
+        Files.write(file(name).toPath(), content.getBytes(Charsets.UTF_8));
+    }
+
+    private void gzip(String name, String content) throws IOException {
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream(file(name)))) {
+            out.write(content.getBytes(Charsets.UTF_8));
+        }
+    }
+
+    private class CollectingHandler implements BatchHandler<String> {
+        @Override
+        public boolean handle(List<String> batch) {
+            return replayed.addAll(batch);
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
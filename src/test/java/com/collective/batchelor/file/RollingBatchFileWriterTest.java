@@ -97,4 +97,110 @@ public class RollingBatchFileWriterTest {
         assertThat(new File(firstFile).delete()).isTrue();
     }
 
+    @Test
+    public void staysOnFileWithinTheHour() throws ParseException, IOException {
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 15:00:00:000")).getMillis());
+        RollingBatchFileWriter fileWriter = new RollingBatchFileWriter("test");
+        assertThat(fileWriter.handle(Arrays.asList("test 1-2"))).isTrue();
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 15:59:59:999")).getMillis());
+        assertThat(fileWriter.handle(Arrays.asList("test 3-4"))).isTrue();
+        fileWriter.done();
+
+        assertThat(fileWriter.currentFile).isEqualTo("test-2013-08-13T15");
+        File file = new File(fileWriter.currentFile);
+        assertThat(Files.readAllLines(file.toPath(), Charset.forName("UTF-8"))).containsExactly("test 1-2", "test 3-4");
+        assertThat(file.delete()).isTrue();
+    }
+
+    @Test
+    public void rollsWithinTheHourWhenMaxBytesAreReached() throws ParseException, IOException {
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 15:23:23:999")).getMillis());
+        RollingBatchFileWriter fileWriter = new RollingBatchFileWriter("test.log", 10);
+        char[] chars = new char[100000];
+        Arrays.fill(chars, 'x');
+        // bigger than the write buffer, so the bytes are counted right away
+        String big = new String(chars);
+        assertThat(fileWriter.handle(Arrays.asList(big))).isTrue();
+        assertThat(fileWriter.currentFile).isEqualTo("test-2013-08-13T15.log");
+        assertThat(fileWriter.handle(Arrays.asList("small"))).isTrue();
+        assertThat(fileWriter.currentFile).isEqualTo("test-2013-08-13T15-1.log");
+        fileWriter.done();
+
+        assertThat(Files.readAllLines(new File("test-2013-08-13T15-1.log").toPath(), Charset.forName("UTF-8"))).containsExactly("small");
+        assertThat(new File("test-2013-08-13T15.log").delete()).isTrue();
+        assertThat(new File("test-2013-08-13T15-1.log").delete()).isTrue();
+    }
+
+    @Test
+    public void retriesOpenAndKeepsCurrentFileWhenOpenFails() throws ParseException, IOException {
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 15:23:23:999")).getMillis());
+        final boolean[] failing = {true};
+        FileBatchHandlerFactory<String> flaky = new FileBatchHandlerFactory<String>() {
+            @Override
+            public FileBatchHandler<String> open(String fileName) throws IOException {
+                if (failing[0])
+                    throw new IOException("disk full");
+                return BatchFileWriter.factory().open(fileName);
+            }
+
+            @Override
+            public Compression getCompression() {
+                return Compression.none();
+            }
+        };
+        RollingBatchFileWriter fileWriter = new RollingBatchFileWriter("test.log", 0, flaky);
+        assertThat(fileWriter.handle(Arrays.asList("test 1-2"))).isFalse();
+        failing[0] = false;
+        assertThat(fileWriter.handle(Arrays.asList("test 1-2"))).isTrue();
+
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 16:23:23:999")).getMillis());
+        failing[0] = true;
+        assertThat(fileWriter.handle(Arrays.asList("test 3-4"))).isFalse();
+        assertThat(fileWriter.currentFile).isEqualTo("test-2013-08-13T15.log");
+        failing[0] = false;
+        assertThat(fileWriter.handle(Arrays.asList("test 3-4"))).isTrue();
+        assertThat(fileWriter.currentFile).isEqualTo("test-2013-08-13T16.log");
+        fileWriter.done();
+
+        assertThat(Files.readAllLines(new File("test-2013-08-13T15.log").toPath(), Charset.forName("UTF-8"))).containsExactly("test 1-2");
+        assertThat(Files.readAllLines(new File("test-2013-08-13T16.log").toPath(), Charset.forName("UTF-8"))).containsExactly("test 3-4");
+        assertThat(new File("test-2013-08-13T15.log").delete()).isTrue();
+        assertThat(new File("test-2013-08-13T16.log").delete()).isTrue();
+    }
+
+    @Test
+    public void compressesRolledFiles() throws ParseException, IOException {
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 15:23:23:999")).getMillis());
+        RollingBatchFileWriter fileWriter = new RollingBatchFileWriter("test.log");
+        fileWriter.setCompressOnRoll(Compression.gzip());
+        assertThat(fileWriter.handle(Arrays.asList("test 1-2"))).isTrue();
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 16:23:23:999")).getMillis());
+        assertThat(fileWriter.handle(Arrays.asList("test 3-4"))).isTrue();
+        fileWriter.done();
+
+        assertThat(new File("test-2013-08-13T15.log").exists()).isFalse();
+        File compressed = new File("test-2013-08-13T15.log.gz");
+        assertThat(BatchFileWriterTest.readGzipLines(compressed)).containsExactly("test 1-2");
+        assertThat(compressed.delete()).isTrue();
+        // the open file is not compressed on done()
+        assertThat(new File("test-2013-08-13T16.log").delete()).isTrue();
+    }
+
+    @Test
+    public void namesFilesCompressedWhileWritingWithSuffix() throws ParseException, IOException {
+        DateTimeUtils.setCurrentMillisFixed(new DateTime(UTC_DATE_FORMAT.parse("2013-08-13 15:23:23:999")).getMillis());
+        RollingBatchFileWriter fileWriter = new RollingBatchFileWriter("test.log", 0, BatchFileWriter.factory(Compression.gzip()));
+        assertThat(fileWriter.handle(Arrays.asList("test 1-2"))).isTrue();
+        fileWriter.done();
+
+        assertThat(fileWriter.currentFile).isEqualTo("test-2013-08-13T15.log.gz");
+        File compressed = new File(fileWriter.currentFile);
+        assertThat(BatchFileWriterTest.readGzipLines(compressed)).containsExactly("test 1-2");
+        assertThat(compressed.delete()).isTrue();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCompressOnRollWhenCompressingWhileWriting() {
+        new RollingBatchFileWriter("test.log", 0, BatchFileWriter.factory(Compression.gzip())).setCompressOnRoll(Compression.gzip());
+    }
 }
@@ -0,0 +1,36 @@
+package com.collective.batchelor.flume;
+
+import com.collective.batchelor.util.Encoder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import org.apache.flume.Event;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class EventEncodersTest {
+
+    @Test
+    public void encodesStringsWithCharset() {
+        Encoder<String, Event> encoder = EventEncoders.strings(Charsets.UTF_8);
+        assertThat(encoder.encode("b\u00e4r").getBody()).isEqualTo("b\u00e4r".getBytes(Charsets.UTF_8));
+        assertThat(encoder.encode("").getBody()).isEmpty();
+    }
+
+    @Test
+    public void growsScratchBufferAndDoesNotShareIt() {
+        Encoder<String, Event> encoder = EventEncoders.strings(Charsets.ISO_8859_1);
+        String large = Strings.repeat("x", 5000);
+        Event first = encoder.encode(large);
+        Event second = encoder.encode("y");
+        assertThat(first.getBody()).hasSize(5000);
+        assertThat(new String(first.getBody(), Charsets.ISO_8859_1)).isEqualTo(large);
+        assertThat(second.getBody()).isEqualTo(new byte[]{'y'});
+    }
+
+    @Test
+    public void replacesUnmappableCharacters() {
+        Encoder<String, Event> encoder = EventEncoders.strings(Charsets.US_ASCII);
+        assertThat(new String(encoder.encode("b\u00e4r").getBody(), Charsets.US_ASCII)).isEqualTo("b?r");
+    }
+}
@@ -0,0 +1,186 @@
+package com.collective.batchelor.flume;
+
+import com.collective.batchelor.metrics.CountingBatchMetrics;
+import com.collective.batchelor.util.BatchHandler;
+import com.collective.batchelor.util.RetryPolicy;
+import org.apache.avro.AvroRemoteException;
+import org.apache.flume.Event;
+import org.apache.flume.EventDeliveryException;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.source.avro.AvroFlumeEvent;
+import org.apache.flume.source.avro.Status;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LoadBalancingFlumeBatchHandlerTest {
+
+    private FlumeTestServer first;
+    private FlumeTestServer second;
+
+    @Before
+    public void startFlume() {
+        first = new FlumeTestServer(false, "127.0.0.1", 49153);
+        second = new FlumeTestServer(false, "127.0.0.1", 49154);
+    }
+
+    @After
+    public void stopFlume() throws InterruptedException {
+        first.close();
+        if (second != null)
+            second.close();
+    }
+
+    @Test
+    public void spreadsBatchesOverAgents() throws InterruptedException {
+        LoadBalancingFlumeBatchHandler handler = new LoadBalancingFlumeBatchHandler(Arrays.asList("127.0.0.1:49153", "127.0.0.1:49154"),
+                100, LoadBalancingFlumeBatchHandler.Selection.ROUND_ROBIN, 4, 100, 5000, new CollectingHandler());
+        for (int i = 0; i < 10; i++) {
+            assertThat(handler.handle(Collections.singletonList(createFlumeEvent("event " + i)))).isTrue();
+        }
+        assertThat(handler.flush(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(first.events).hasSize(5);
+        assertThat(second.events).hasSize(5);
+        handler.done();
+        assertThat(handler.getGivenUpCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void failsOverToHealthyAgent() throws InterruptedException {
+        second.close();
+        second = null;
+        LoadBalancingFlumeBatchHandler handler = new LoadBalancingFlumeBatchHandler(Arrays.asList("127.0.0.1:49153", "127.0.0.1:49154"),
+                100, LoadBalancingFlumeBatchHandler.Selection.RANDOM, 2, 60000, 5000, new CollectingHandler());
+        for (int i = 0; i < 10; i++) {
+            assertThat(handler.handle(Collections.singletonList(createFlumeEvent("event " + i)))).isTrue();
+        }
+        assertThat(handler.flush(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(first.events).hasSize(10);
+        assertThat(handler.getHealthyAgents()).isEqualTo(1);
+        handler.done();
+    }
+
+    @Test
+    public void refusesBatchesWhileAllAgentsAreDown() throws InterruptedException {
+        LoadBalancingFlumeBatchHandler handler = new LoadBalancingFlumeBatchHandler(Arrays.asList("127.0.0.1:49155"),
+                100, LoadBalancingFlumeBatchHandler.Selection.ROUND_ROBIN, 1, 60000, 100, new RefusingHandler());
+        handler.setMaxAttempts(3);
+        handler.setRetryPolicy(RetryPolicy.fixed(10));
+        Event event = createFlumeEvent("hallo");
+        List<Event> batch = new ArrayList<>(Collections.singletonList(event));
+        // accepted, but not delivered
+        assertThat(handler.handle(batch)).isTrue();
+        assertThat(handler.flush(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.getHealthyAgents()).isEqualTo(0);
+        assertThat(handler.getGivenUpCount()).isEqualTo(1);
+        assertThat(handler.takeUndelivered()).containsExactly(event);
+        assertThat(handler.handle(batch)).isFalse();
+        handler.done();
+    }
+
+    @Test
+    public void givesUpRejectedBatchWithoutTakingAgentOut() throws InterruptedException {
+        FlumeTestServer rejecting = new FlumeTestServer(false, "127.0.0.1", 49155) {
+            @Override
+            public Status appendBatch(List<AvroFlumeEvent> events) throws AvroRemoteException {
+                return Status.FAILED;
+            }
+        };
+        try {
+            CollectingHandler fallback = new CollectingHandler();
+            LoadBalancingFlumeBatchHandler handler = new LoadBalancingFlumeBatchHandler(Arrays.asList("127.0.0.1:49155"),
+                    100, LoadBalancingFlumeBatchHandler.Selection.ROUND_ROBIN, 1, 60000, 100, fallback);
+            handler.setMaxAttempts(2);
+            handler.setRetryPolicy(RetryPolicy.fixed(10));
+            Event event = createFlumeEvent("hallo");
+            assertThat(handler.handle(Collections.singletonList(event))).isTrue();
+            assertThat(handler.flush(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(fallback.events).containsExactly(event);
+            assertThat(handler.getHealthyAgents()).isEqualTo(1);
+            handler.done();
+            assertThat(fallback.done).isTrue();
+        } finally {
+            rejecting.close();
+        }
+    }
+
+    @Test
+    public void handsBatchesStillInFlightToFallbackOnDone() {
+        CollectingHandler fallback = new CollectingHandler();
+        LoadBalancingFlumeBatchHandler handler = new LoadBalancingFlumeBatchHandler(Arrays.asList("127.0.0.1:49155"),
+                100, LoadBalancingFlumeBatchHandler.Selection.ROUND_ROBIN, 1, 60000, 100, fallback);
+        handler.setRetryPolicy(RetryPolicy.fixed(60000));
+        Event event = createFlumeEvent("hallo");
+        assertThat(handler.handle(Collections.singletonList(event))).isTrue();
+        assertThat(handler.flush(200, TimeUnit.MILLISECONDS)).isFalse();
+        handler.done();
+        assertThat(fallback.events).containsExactly(event);
+        assertThat(handler.flushAsync().isDone()).isTrue();
+    }
+
+    @Test
+    public void dropsRefusedBatchesBeyondMaxUndelivered() {
+        LoadBalancingFlumeBatchHandler handler = new LoadBalancingFlumeBatchHandler(Arrays.asList("127.0.0.1:49155"),
+                100, LoadBalancingFlumeBatchHandler.Selection.ROUND_ROBIN, 1, 60000, 100, new RefusingHandler());
+        CountingBatchMetrics metrics = new CountingBatchMetrics();
+        handler.setMetrics(metrics);
+        handler.setMaxAttempts(1);
+        handler.setMaxUndelivered(1);
+        assertThat(handler.handle(Arrays.asList(createFlumeEvent("a"), createFlumeEvent("b")))).isTrue();
+        assertThat(handler.flush(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(handler.getGivenUpCount()).isEqualTo(2);
+        assertThat(handler.getDroppedCount()).isEqualTo(2);
+        assertThat(metrics.getDroppedCount()).isEqualTo(2);
+        assertThat(handler.takeUndelivered()).isEmpty();
+        handler.done();
+    }
+
+    @Test
+    public void tellsRejectionsFromTransportFailures() {
+        assertThat(LoadBalancingFlumeBatchHandler.isRejection(new EventDeliveryException("client: Failed to send batch",
+                new EventDeliveryException("client: Avro RPC call returned Status: FAILED")))).isTrue();
+        assertThat(LoadBalancingFlumeBatchHandler.isRejection(new EventDeliveryException("client: Failed to send batch",
+                new IOException("Connection refused")))).isFalse();
+        assertThat(LoadBalancingFlumeBatchHandler.isRejection(new EventDeliveryException("client: RPC request timed out after 20000 ms"))).isFalse();
+    }
+
+    private static class CollectingHandler implements BatchHandler<Event> {
+        final List<Event> events = new CopyOnWriteArrayList<>();
+        volatile boolean done;
+
+        @Override
+        public boolean handle(List<Event> batch) {
+            return events.addAll(batch);
+        }
+
+        @Override
+        public void done() {
+            done = true;
+        }
+    }
+
+    private static class RefusingHandler implements BatchHandler<Event> {
+        @Override
+        public boolean handle(List<Event> batch) {
+            return false;
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+
+    private Event createFlumeEvent(String body) {
+        return EventBuilder.withBody(body.getBytes());
+    }
+}
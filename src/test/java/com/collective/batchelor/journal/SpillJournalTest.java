@@ -0,0 +1,123 @@
+package com.collective.batchelor.journal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpillJournalTest {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    @Test
+    public void readsEventsInOrderAcrossSegments() throws IOException {
+        SpillJournal<String> journal = new SpillJournal<>(directory, 64, JournalSerializers.strings());
+        assertThat(journal.isEmpty()).isTrue();
+        for (int i = 0; i < 20; i++) {
+            journal.append("event " + i);
+        }
+        assertThat(journal.size()).isEqualTo(20);
+        assertThat(segments()).isGreaterThan(1);
+
+        List<String> events = new ArrayList<>();
+        assertThat(journal.read(events, 15)).isEqualTo(15);
+        assertThat(journal.read(events, 15)).isEqualTo(5);
+        assertThat(journal.isEmpty()).isTrue();
+        for (int i = 0; i < 20; i++) {
+            assertThat(events.get(i)).isEqualTo("event " + i);
+        }
+        journal.commit();
+        assertThat(journal.size()).isEqualTo(0);
+        assertThat(segments()).isEqualTo(1);
+        journal.close();
+    }
+
+    @Test
+    public void replaysUncommittedEventsAfterReopen() throws IOException {
+        SpillJournal<String> journal = new SpillJournal<>(directory, 1024, JournalSerializers.strings());
+        journal.append("a");
+        journal.append("b");
+        journal.append("c");
+        List<String> events = new ArrayList<>();
+        journal.read(events, 1);
+        journal.commit();
+        journal.read(events, 1);
+        journal.close();
+
+        SpillJournal<String> reopened = new SpillJournal<>(directory, 1024, JournalSerializers.strings());
+        assertThat(reopened.size()).isEqualTo(2);
+        events.clear();
+        reopened.read(events, 10);
+        assertThat(events).containsExactly("b", "c");
+        reopened.append("d");
+        events.clear();
+        reopened.read(events, 10);
+        assertThat(events).containsExactly("d");
+        reopened.close();
+    }
+
+    @Test
+    public void ignoresRecordTornByCrash() throws IOException {
+        // the type byte of a 10 byte record was never written, its payload is full of record type bytes
+        ByteBuffer torn = ByteBuffer.allocate(15);
+        torn.put((byte) 0).putInt(10);
+        while (torn.hasRemaining()) {
+            torn.put((byte) 1);
+        }
+        Files.write(new File(directory, SpillJournal.SEGMENT_PREFIX + "0000000000" + SpillJournal.SEGMENT_SUFFIX).toPath(), torn.array());
+
+        SpillJournal<String> journal = new SpillJournal<>(directory, 1024, JournalSerializers.strings());
+        assertThat(journal.size()).isEqualTo(0);
+        journal.append("a");
+        List<String> events = new ArrayList<>();
+        assertThat(journal.read(events, 10)).isEqualTo(1);
+        assertThat(events).containsExactly("a");
+        journal.close();
+
+        SpillJournal<String> reopened = new SpillJournal<>(directory, 1024, JournalSerializers.strings());
+        assertThat(reopened.size()).isEqualTo(1);
+        reopened.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEventsLargerThanASegment() throws IOException {
+        SpillJournal<String> journal = new SpillJournal<>(directory, 16, JournalSerializers.strings());
+        journal.append("this does not fit into a segment");
+    }
+
+    private int segments() {
+        int segments = 0;
+        //noinspection ConstantConditions
+        for (String name : directory.list()) {
+            if (name.startsWith(SpillJournal.SEGMENT_PREFIX))
+                segments++;
+        }
+        return segments;
+    }
+}
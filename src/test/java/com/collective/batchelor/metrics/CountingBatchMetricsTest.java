@@ -0,0 +1,55 @@
+package com.collective.batchelor.metrics;
+
+import org.junit.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CountingBatchMetricsTest {
+
+    @Test
+    public void countsEvents() {
+        CountingBatchMetrics metrics = new CountingBatchMetrics();
+        metrics.enqueued();
+        metrics.enqueued();
+        metrics.dropped(3);
+        metrics.rejected();
+        metrics.retried();
+        metrics.batchHandled(10, TimeUnit.MILLISECONDS.toNanos(2), true);
+        metrics.batchHandled(10, TimeUnit.MILLISECONDS.toNanos(4), false);
+        metrics.bytesWritten(100);
+        metrics.drainWaited(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertThat(metrics.getEnqueuedCount()).isEqualTo(2);
+        assertThat(metrics.getEnqueueRate()).isGreaterThan(0);
+        assertThat(metrics.getDroppedCount()).isEqualTo(3);
+        assertThat(metrics.getRejectedCount()).isEqualTo(1);
+        assertThat(metrics.getRetryCount()).isEqualTo(1);
+        assertThat(metrics.getBatchCount()).isEqualTo(1);
+        assertThat(metrics.getFailedBatchCount()).isEqualTo(1);
+        assertThat(metrics.getBatchSizeMean()).isEqualTo(10.0);
+        assertThat(metrics.getHandleLatencyMeanMillis()).isEqualTo(3.0);
+        assertThat(metrics.getHandleLatencyMaxMillis()).isEqualTo(4.0);
+        assertThat(metrics.getBytesWritten()).isEqualTo(100);
+        assertThat(metrics.getDrainWaitMillis()).isEqualTo(5);
+    }
+
+    @Test
+    public void canBeReadThroughJmx() throws JMException {
+        CountingBatchMetrics metrics = new CountingBatchMetrics();
+        metrics.registerMBean("test");
+        try {
+            metrics.enqueued();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.collective.batchelor:type=BatchMetrics,name=\"test\"");
+            assertThat(server.getAttribute(name, "EnqueuedCount")).isEqualTo(1L);
+        } finally {
+            metrics.unregisterMBean();
+        }
+    }
+}
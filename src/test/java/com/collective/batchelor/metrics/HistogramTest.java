@@ -0,0 +1,32 @@
+package com.collective.batchelor.metrics;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class HistogramTest {
+
+    @Test
+    public void recordsCountMeanAndMax() {
+        Histogram histogram = new Histogram();
+        assertThat(histogram.getPercentile(0.5)).isEqualTo(0);
+        histogram.record(1);
+        histogram.record(3);
+        histogram.record(8);
+        assertThat(histogram.getCount()).isEqualTo(3);
+        assertThat(histogram.getMax()).isEqualTo(8);
+        assertThat(histogram.getMean()).isEqualTo(4.0);
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10);
+        }
+        histogram.record(1000);
+        assertThat(histogram.getPercentile(0.5)).isEqualTo(15);
+        assertThat(histogram.getPercentile(0.99)).isEqualTo(15);
+        assertThat(histogram.getPercentile(1)).isEqualTo(1000);
+    }
+}
@@ -0,0 +1,51 @@
+package com.collective.batchelor.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AdaptiveBatchSizerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void growsWhileSinkIsFastAndBacklogBuildsUp() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 170, 0, 160, 50);
+        assertThat(sizer.getBatchSize()).isEqualTo(10);
+        for (int i = 0; i < 100; i++) {
+            sizer.onBatchHandled(sizer.getBatchSize(), FAST, 10000);
+        }
+        assertThat(sizer.getBatchSize()).isEqualTo(170);
+        assertThat(sizer.getLingerMillis()).isEqualTo(160);
+    }
+
+    @Test
+    public void halvesBatchSizeWhenSinkIsSlow() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 170, 0, 160, 50);
+        for (int i = 0; i < 100; i++) {
+            sizer.onBatchHandled(sizer.getBatchSize(), FAST, 10000);
+        }
+        sizer.onBatchHandled(170, SLOW, 10000);
+        assertThat(sizer.getBatchSize()).isEqualTo(85);
+        for (int i = 0; i < 10; i++) {
+            sizer.onBatchHandled(sizer.getBatchSize(), SLOW, 10000);
+        }
+        assertThat(sizer.getBatchSize()).isEqualTo(10);
+    }
+
+    @Test
+    public void shortensLingerUnderLowLoad() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 170, 5, 160, 50);
+        for (int i = 0; i < 100; i++) {
+            sizer.onBatchHandled(sizer.getBatchSize(), FAST, 10000);
+        }
+        for (int i = 0; i < 10; i++) {
+            sizer.onBatchHandled(3, FAST, 0);
+        }
+        assertThat(sizer.getLingerMillis()).isEqualTo(5);
+        assertThat(sizer.getBatchSize()).isEqualTo(170);
+    }
+}
@@ -1,13 +1,28 @@
 package com.collective.batchelor.util;
 
+import com.google.common.base.Function;
+import com.collective.batchelor.journal.JournalSerializers;
+import com.collective.batchelor.journal.SpillJournal;
+import com.collective.batchelor.metrics.CountingBatchMetrics;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 
@@ -125,4 +140,604 @@ public class AsyncBatchExecutorTest {
         verify(handler, atLeast(3)).handle(anyListOf(String.class));
     }
 
+
+    @Test
+    public void partitionedExecutorCoversAllPartitionsInStats() throws InterruptedException {
+        //noinspection unchecked
+        BatchHandler<String> handler2 = mock(BatchHandler.class, BatchHandler.class.getName() + "2");
+        executorService = new AsyncBatchExecutor<>(1, 2, Arrays.asList(handler, handler2), Partitioners.<String>roundRobin(), 500, 1000);
+        assertThat(executorService.getPartitions()).isEqualTo(2);
+        assertThat(executorService.getMaxQueueSize()).isEqualTo(4);
+        executorService.start();
+        executorService.add("a");
+        executorService.add("b");
+        assertThat(executorService.getQueueSize()).isEqualTo(2);
+        assertThat(executorService.getQueueFillFraction()).isEqualTo(0.5f);
+
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+        when(handler2.handle(anyListOf(String.class))).thenReturn(true);
+        verify(handler, timeout(2000)).handle(anyListOf(String.class));
+        verify(handler2, timeout(2000)).handle(anyListOf(String.class));
+        executorService.stop();
+        verify(handler2).done();
+    }
+
+    @Test
+    public void partitionByKeyKeepsOrderPerKey() {
+        final List<String> first = new CopyOnWriteArrayList<>();
+        final List<String> second = new CopyOnWriteArrayList<>();
+        Partitioner<String> partitioner = Partitioners.byKey(new Function<String, Object>() {
+            @Override
+            public Object apply(String input) {
+                return input.substring(0, 1);
+            }
+        });
+        executorService.stop();
+        executorService = AsyncBatchExecutor.createAndStart(10, 100, Arrays.asList(new CollectingHandler(first), new CollectingHandler(second)), partitioner, 10, 10);
+        for (int i = 0; i < 50; i++) {
+            executorService.add("a" + i);
+            executorService.add("b" + i);
+        }
+        executorService.flush();
+        assertThat(first.size() + second.size()).isEqualTo(100);
+        assertThat(lastIndexInOrder("a", first) + lastIndexInOrder("a", second)).isEqualTo(48);
+        assertThat(lastIndexInOrder("b", first) + lastIndexInOrder("b", second)).isEqualTo(48);
+    }
+
+    @Test
+    public void canUseRingBufferQueue() {
+        executorService = AsyncBatchExecutor.createAndStart(1, 4, handler, 500, 1000, WaitStrategy.BLOCKING);
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+        executorService.add("bla");
+        verify(handler, timeout(1000)).handle(anyListOf(String.class));
+        assertThat(executorService.workerThread.queue).isInstanceOf(RingBufferQueue.class);
+    }
+
+    @Test
+    public void doesNotBlockWhenDroppingOnFullQueue() {
+        executorService.stop();
+        when(handler.handle(anyListOf(String.class))).thenReturn(false);
+        executorService = new AsyncBatchExecutor<>(1, 1, handler, 500, 1000);
+        executorService.setOverflowPolicy(OverflowPolicy.<String>dropNewest());
+        executorService.start();
+        executorService.add("bla");
+        verify(handler, timeout(1000)).handle(anyListOf(String.class));
+        executorService.add("bla1");
+        executorService.add("bla2");
+        executorService.add("bla3");
+        assertThat(executorService.getDroppedCount()).isEqualTo(2);
+        assertThat(executorService.getRejectedCount()).isEqualTo(2);
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+    }
+
+    @Test
+    public void spillsToJournalWhileHandlerFailsAndReplaysInOrder() throws IOException {
+        File directory = Files.createTempDirectory("journal").toFile();
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final AtomicBoolean failing = new AtomicBoolean(true);
+        BatchHandler<String> failingHandler = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                return !failing.get() && super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(5, 10, failingHandler, 10, 10);
+        executorService.setSpillJournal(new SpillJournal<>(directory, 1024, JournalSerializers.strings()), 5);
+        executorService.start();
+        for (int i = 0; i < 100; i++) {
+            executorService.add(Integer.toString(i));
+        }
+        assertThat(executorService.getSpilledSize()).isGreaterThan(0);
+        failing.set(false);
+        executorService.flush();
+        assertThat(delivered).hasSize(100);
+        for (int i = 0; i < 100; i++) {
+            assertThat(delivered.get(i)).isEqualTo(Integer.toString(i));
+        }
+        assertThat(executorService.getSpilledSize()).isEqualTo(0);
+        //noinspection ConstantConditions
+        for (File file : directory.listFiles()) {
+            assertThat(file.delete()).isTrue();
+        }
+        assertThat(directory.delete()).isTrue();
+    }
+
+    @Test
+    public void openCircuitStopsCallingHandler() throws InterruptedException {
+        executorService.setRetryPolicy(RetryPolicy.exponentialBackoff(1, 10, 0.5));
+        executorService.setCircuitBreaker(new CircuitBreaker(3, 60000));
+        executorService.start();
+        when(handler.handle(anyListOf(String.class))).thenReturn(false);
+        executorService.add("bla");
+        verify(handler, timeout(1000).times(3)).handle(anyListOf(String.class));
+        assertThat(executorService.isCircuitOpen()).isTrue();
+        Thread.sleep(100);
+        verify(handler, times(3)).handle(anyListOf(String.class));
+        executorService.getCircuitBreaker().recordSuccess();
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+    }
+
+    @Test
+    public void reportsToMetrics() {
+        CountingBatchMetrics metrics = new CountingBatchMetrics();
+        executorService.setMetrics(metrics);
+        executorService.start();
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+        executorService.add("bla");
+        executorService.flush();
+        assertThat(metrics.getEnqueuedCount()).isEqualTo(1);
+        assertThat(metrics.getBatchCount()).isEqualTo(1);
+        assertThat(metrics.getBatchSizeMax()).isEqualTo(1);
+    }
+
+    @Test
+    public void interruptedAddKeepsInterruptAndIsNotCountedAsEnqueued() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        BatchHandler<String> blocking = new CollectingHandler(new CopyOnWriteArrayList<String>()) {
+            @Override
+            public boolean handle(List<String> batch) {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(1, 1, blocking, 10, 10);
+        CountingBatchMetrics metrics = new CountingBatchMetrics();
+        executorService.setMetrics(metrics);
+        executorService.start();
+        executorService.add("a");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (executorService.workerThread.queue.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        executorService.add("b");
+        Thread.currentThread().interrupt();
+        executorService.add("c");
+        assertThat(Thread.interrupted()).isTrue();
+        assertThat(metrics.getEnqueuedCount()).isEqualTo(2);
+        assertThat(metrics.getDroppedCount()).isEqualTo(1);
+        release.countDown();
+    }
+
+    @Test
+    public void adaptiveSizerGrowsBatchesUnderBacklog() throws InterruptedException {
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch backlogged = new CountDownLatch(1);
+        BatchHandler<String> sizeRecording = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                try {
+                    backlogged.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                batchSizes.add(batch.size());
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(1, 10000, sizeRecording, 10, 10);
+        executorService.setAdaptiveBatchSizer(new AdaptiveBatchSizer(1, 100, 0, 10, 1000));
+        executorService.start();
+        for (int i = 0; i < 5000; i++) {
+            executorService.add(Integer.toString(i));
+        }
+        backlogged.countDown();
+        executorService.flush();
+        assertThat(delivered).hasSize(5000);
+        assertThat(batchSizes.get(0)).isEqualTo(1);
+        assertThat(executorService.getAdaptiveBatchSizer().getBatchSize()).isGreaterThan(1);
+        assertThat(batchSizes.size()).isLessThan(5000);
+    }
+
+    @Test
+    public void bisectsBatchToIsolatePoisonEvents() {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final List<String> deadLetters = new CopyOnWriteArrayList<>();
+        BatchHandler<String> poisonRefusing = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                return !batch.contains("poison") && super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(8, 100, poisonRefusing, 100, 1);
+        executorService.setDeadLetterHandler(new CollectingHandler(deadLetters), 2);
+        executorService.start();
+        for (int i = 0; i < 8; i++) {
+            executorService.add(i == 2 || i == 5 ? "poison" : Integer.toString(i));
+        }
+        executorService.flush();
+        assertThat(delivered).containsExactly("0", "1", "3", "4", "6", "7");
+        assertThat(deadLetters).containsExactly("poison", "poison");
+        assertThat(executorService.getDeadLetteredCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void doesNotDeadLetterWhileHandlerIsDown() throws InterruptedException {
+        final List<String> deadLetters = new CopyOnWriteArrayList<>();
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(4, 100, handler, 100, 1);
+        executorService.setDeadLetterHandler(new CollectingHandler(deadLetters), 1);
+        when(handler.handle(anyListOf(String.class))).thenReturn(false);
+        executorService.start();
+        for (int i = 0; i < 4; i++) {
+            executorService.add(Integer.toString(i));
+        }
+        verify(handler, timeout(1000).atLeast(10)).handle(anyListOf(String.class));
+        assertThat(deadLetters).isEmpty();
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+    }
+
+    @Test
+    public void openCircuitAlsoStopsBisection() throws InterruptedException {
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(4, 100, handler, 100, 1);
+        executorService.setDeadLetterHandler(new CollectingHandler(new CopyOnWriteArrayList<String>()), 1);
+        executorService.setCircuitBreaker(new CircuitBreaker(1, 60000));
+        when(handler.handle(anyListOf(String.class))).thenReturn(false);
+        executorService.start();
+        for (int i = 0; i < 4; i++) {
+            executorService.add(Integer.toString(i));
+        }
+        verify(handler, timeout(1000)).handle(anyListOf(String.class));
+        Thread.sleep(100);
+        verify(handler, times(1)).handle(anyListOf(String.class));
+        executorService.getCircuitBreaker().recordSuccess();
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+    }
+
+    @Test
+    public void flushFutureCompletesOnceEventsAreHandled() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        BatchHandler<String> blocking = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = AsyncBatchExecutor.createAndStart(10, 100, blocking, 10, 10);
+        executorService.add("bla");
+        executorService.add("bla2");
+        ListenableFuture<Void> flushed = executorService.flushAsync();
+        assertThat(executorService.flush(50, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(flushed.isDone()).isFalse();
+        release.countDown();
+        flushed.get(1, TimeUnit.SECONDS);
+        assertThat(delivered).containsExactly("bla", "bla2");
+    }
+
+    @Test
+    public void flushWaitsForFlushableHandler() throws Exception {
+        final SettableFuture<Void> delivered = SettableFuture.create();
+        FlushableBatchHandler<String> flushable = new FlushableBatchHandler<String>() {
+            @Override
+            public ListenableFuture<Void> flushAsync() {
+                return delivered;
+            }
+
+            @Override
+            public boolean handle(List<String> batch) {
+                return true;
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+        executorService.stop();
+        executorService = AsyncBatchExecutor.createAndStart(10, 100, flushable, 10, 10);
+        executorService.add("bla");
+        ListenableFuture<Void> flushed = executorService.flushAsync();
+        assertThat(executorService.flush(50, TimeUnit.MILLISECONDS)).isFalse();
+        delivered.set(null);
+        flushed.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void stopHandsRemainingEventsToFallbackAfterDeadline() {
+        final List<String> fallback = new CopyOnWriteArrayList<>();
+        when(handler.handle(anyListOf(String.class))).thenReturn(false);
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(1, 10, handler, 10, 10);
+        executorService.setShutdownFallbackHandler(new CollectingHandler(fallback));
+        executorService.start();
+        executorService.add("bla");
+        executorService.add("bla2");
+        executorService.add("bla3");
+        verify(handler, timeout(1000).atLeastOnce()).handle(anyListOf(String.class));
+        long start = System.currentTimeMillis();
+        assertThat(executorService.stop(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(System.currentTimeMillis() - start).isLessThan(1000);
+        assertThat(executorService.workerThread.isAlive()).isFalse();
+        assertThat(fallback).containsExactly("bla", "bla2", "bla3");
+    }
+
+    @Test
+    public void stopJoinsWorkers() {
+        executorService.start();
+        when(handler.handle(anyListOf(String.class))).thenReturn(true);
+        executorService.add("bla");
+        assertThat(executorService.stop(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(executorService.workerThread.isAlive()).isFalse();
+        verify(handler).handle(anyListOf(String.class));
+    }
+
+    @Test
+    public void closesBatchAtMaxBytes() {
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        BatchHandler<String> sizeRecording = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                int bytes = 0;
+                for (String event : batch) {
+                    bytes += event.length();
+                }
+                batchSizes.add(bytes);
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(100, 100, sizeRecording, 100, 10);
+        executorService.setWeigher(ByteBoundedQueueTest.LENGTH, 10, 30);
+        executorService.start();
+        for (String event : Arrays.asList("1234", "1234", "1234", "12345678901234", "1", "12")) {
+            executorService.add(event);
+        }
+        executorService.flush();
+        assertThat(delivered).containsExactly("1234", "1234", "1234", "12345678901234", "1", "12");
+        assertThat(batchSizes).containsExactly(8, 4, 14, 3);
+        assertThat(executorService.getQueuedBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void highPriorityLaneOvertakesBacklog() throws InterruptedException {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch backlogged = new CountDownLatch(1);
+        BatchHandler<String> blocking = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                handling.countDown();
+                try {
+                    backlogged.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(5, 100, blocking, 10, 10);
+        Lane<String> alerts = Lane.of(10, OverflowPolicy.<String>block());
+        Lane<String> debug = Lane.of(20, OverflowPolicy.<String>dropNewest());
+        executorService.setPriorityLanes(Lane.Selection.STRICT, Arrays.asList(alerts, debug));
+        assertThat(executorService.getMaxQueueSize()).isEqualTo(30);
+        executorService.start();
+        executorService.add("debug0");
+        assertThat(handling.await(1, TimeUnit.SECONDS)).isTrue();
+        for (int i = 1; i < 30; i++) {
+            executorService.add("debug" + i);
+        }
+        executorService.add("alert", 0);
+        backlogged.countDown();
+        executorService.flush();
+        assertThat(delivered.get(0)).isEqualTo("debug0");
+        assertThat(delivered.get(1)).isEqualTo("alert");
+        assertThat(alerts.getEnqueuedCount()).isEqualTo(1);
+        assertThat(debug.getDroppedCount()).isGreaterThan(0);
+        assertThat(debug.getSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void addsAllInOneGo() {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        executorService.stop();
+        executorService = AsyncBatchExecutor.createAndStart(10, 100, new CollectingHandler(delivered), 10, 10);
+        executorService.addAll(Arrays.asList("bla", "bla2", "bla3"));
+        executorService.flush();
+        assertThat(delivered).containsExactly("bla", "bla2", "bla3");
+    }
+
+    @Test
+    public void stagesEventsPerThreadAndPublishesInChunks() throws InterruptedException {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(10, 100, new CollectingHandler(delivered), 10, 10);
+        executorService.setStaging(3, 50);
+        executorService.start();
+        executorService.add("bla");
+        executorService.add("bla2");
+        assertThat(executorService.getQueueSize()).isEqualTo(0);
+        executorService.add("bla3");
+        executorService.add("bla4");
+        executorService.flush();
+        assertThat(delivered).containsExactly("bla", "bla2", "bla3", "bla4");
+
+        // published by the sweeper without a flush
+        executorService.add("bla5");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (delivered.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(delivered).hasSize(5);
+    }
+
+    @Test
+    public void weigherKeepsPriorityLanes() {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(5, 100, new CollectingHandler(delivered), 10, 10);
+        executorService.setPriorityLanes(Lane.Selection.STRICT, Arrays.asList(Lane.<String>of(10, OverflowPolicy.<String>block()),
+                Lane.<String>of(20, OverflowPolicy.<String>block())));
+        executorService.setWeigher(ByteBoundedQueueTest.LENGTH, 10);
+        try {
+            executorService.setWeigher(ByteBoundedQueueTest.LENGTH, 10, 30);
+            fail("byte bound and lanes can't be combined");
+        } catch (IllegalStateException expected) {
+        }
+        assertThat(executorService.getMaxQueueSize()).isEqualTo(30);
+        executorService.start();
+        executorService.add("bla", 0);
+        executorService.add("bla2");
+        executorService.flush();
+        assertThat(delivered).containsExactly("bla", "bla2");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsPriorityLanesWithByteBound() {
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(5, 100, handler, 10, 10);
+        executorService.setWeigher(ByteBoundedQueueTest.LENGTH, 10, 30);
+        executorService.setPriorityLanes(Lane.Selection.STRICT, Arrays.asList(Lane.<String>of(10, OverflowPolicy.<String>block())));
+    }
+
+    @Test
+    public void sweeperLeavesEventsStagedWhileQueueIsFull() throws InterruptedException {
+        final List<String> stuckDelivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        BatchHandler<String> blocking = new CollectingHandler(stuckDelivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return super.handle(batch);
+            }
+        };
+        AsyncBatchExecutor<String> stuck = new AsyncBatchExecutor<>(1, 1, blocking, 10, 10);
+        stuck.setStaging(10, 20);
+        stuck.start();
+        stuck.add("a");
+        stuck.add("b");
+        stuck.add("c");
+
+        // the sweeper is shared, it must not be parked on the full queue of the other executor
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(10, 100, new CollectingHandler(delivered), 10, 10);
+        executorService.setStaging(10, 20);
+        executorService.start();
+        executorService.add("x");
+        long deadline = System.currentTimeMillis() + 1000;
+        while (delivered.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(delivered).containsExactly("x");
+
+        release.countDown();
+        assertThat(stuck.flush(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(stuckDelivered).containsExactly("a", "b", "c");
+        stuck.stop();
+    }
+
+    @Test
+    public void drainsNextBatchWhileHandlerIsBusy() throws InterruptedException {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final CountDownLatch release = new CountDownLatch(1);
+        BatchHandler<String> blocking = new CollectingHandler(delivered) {
+            @Override
+            public boolean handle(List<String> batch) {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(2, 100, blocking, 10, 10);
+        executorService.setPipelineDepth(2);
+        executorService.start();
+        executorService.addAll(Arrays.asList("bla", "bla2"));
+        executorService.addAll(Arrays.asList("bla3", "bla4"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!executorService.workerThread.queue.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(executorService.workerThread.queue).isEmpty();
+        // batches waiting for or in the handler stage still count as queued
+        while (executorService.getQueueSize() != 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(executorService.getQueueSize()).isEqualTo(4);
+        assertThat(delivered).isEmpty();
+        release.countDown();
+        executorService.flush();
+        assertThat(delivered).containsExactly("bla", "bla2", "bla3", "bla4");
+        assertThat(executorService.getQueueSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void pipelinedStopHandsBatchesInFlightToFallback() {
+        final List<String> fallback = new CopyOnWriteArrayList<>();
+        when(handler.handle(anyListOf(String.class))).thenReturn(false);
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(1, 10, handler, 10, 10);
+        executorService.setPipelineDepth(3);
+        executorService.setShutdownFallbackHandler(new CollectingHandler(fallback));
+        executorService.start();
+        executorService.addAll(Arrays.asList("bla", "bla2", "bla3", "bla4"));
+        verify(handler, timeout(1000).atLeastOnce()).handle(anyListOf(String.class));
+        assertThat(executorService.stop(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(executorService.workerThread.isAlive()).isFalse();
+        assertThat(fallback).containsExactly("bla", "bla2", "bla3", "bla4");
+    }
+
+    @Test
+    public void shedsLoadInsteadOfBlockingOnFullQueue() {
+        final CountDownLatch release = new CountDownLatch(1);
+        BatchHandler<String> blocking = new CollectingHandler(new CopyOnWriteArrayList<String>()) {
+            @Override
+            public boolean handle(List<String> batch) {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return super.handle(batch);
+            }
+        };
+        executorService.stop();
+        executorService = new AsyncBatchExecutor<>(1, 4, blocking, 10, 10);
+        LoadShedder<String> shedder = new LoadShedder<>(0.25f, 0);
+        executorService.setLoadShedder(shedder);
+        executorService.start();
+        for (int i = 0; i < 100; i++) {
+            executorService.add("bla" + i);
+        }
+        assertThat(shedder.getSampledOutCount()).isGreaterThanOrEqualTo(95);
+        release.countDown();
+    }
+
+    private static int lastIndexInOrder(String key, List<String> events) {
+        int last = -1;
+        for (String event : events) {
+            if (event.startsWith(key)) {
+                int index = Integer.parseInt(event.substring(1));
+                assertThat(index).isEqualTo(last + 1);
+                last = index;
+            }
+        }
+        return last;
+    }
+
+    private static class CollectingHandler implements BatchHandler<String> {
+        private final List<String> target;
+
+        private CollectingHandler(List<String> target) {
+            this.target = target;
+        }
+
+        @Override
+        public boolean handle(List<String> batch) {
+            return target.addAll(batch);
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+
 }
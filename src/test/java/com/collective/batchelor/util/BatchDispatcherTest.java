@@ -0,0 +1,149 @@
+package com.collective.batchelor.util;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class BatchDispatcherTest {
+
+    private final BatchDispatcher dispatcher = new BatchDispatcher(2);
+
+    @After
+    public void shutdownDispatcher() throws InterruptedException {
+        dispatcher.shutdown();
+        assertThat(dispatcher.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void runsManyExecutorsOnSharedPoolInOrder() {
+        List<AsyncBatchExecutor<String>> executors = Lists.newArrayList();
+        List<List<String>> delivered = Lists.newArrayList();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final List<String> target = new CopyOnWriteArrayList<>();
+            delivered.add(target);
+            AsyncBatchExecutor<String> executor = new AsyncBatchExecutor<>(7, 100, new BatchHandler<String>() {
+                @Override
+                public boolean handle(List<String> batch) {
+                    threads.add(Thread.currentThread().getName());
+                    return target.addAll(batch);
+                }
+
+                @Override
+                public void done() {
+                }
+            }, 20, 10);
+            executor.setDispatcher(dispatcher);
+            executor.start();
+            executors.add(executor);
+        }
+        for (int event = 0; event < 100; event++) {
+            for (AsyncBatchExecutor<String> executor : executors) {
+                executor.add(Integer.toString(event));
+            }
+        }
+        for (AsyncBatchExecutor<String> executor : executors) {
+            assertThat(executor.stop(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(executor.workerThread.isAlive()).isFalse();
+        }
+        for (List<String> target : delivered) {
+            assertThat(target).hasSize(100);
+            for (int event = 0; event < 100; event++) {
+                assertThat(target.get(event)).isEqualTo(Integer.toString(event));
+            }
+        }
+        for (String thread : threads) {
+            assertThat(thread).startsWith("batchDispatcher-");
+        }
+    }
+
+    @Test
+    public void closesPartialBatchAfterLingerAndRetries() throws InterruptedException {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        final AtomicInteger calls = new AtomicInteger();
+        AsyncBatchExecutor<String> executor = new AsyncBatchExecutor<>(100, 100, new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return calls.incrementAndGet() > 2 && delivered.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        }, 20, 10);
+        executor.setDispatcher(dispatcher);
+        executor.start();
+        executor.add("bla");
+        executor.add("bla2");
+        assertThat(executor.flush(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(delivered).containsExactly("bla", "bla2");
+        assertThat(calls.get()).isEqualTo(3);
+        executor.stop();
+    }
+
+    @Test
+    public void stopHandsOverWhatIsLeftWhileHandlerFails() {
+        final List<String> fallback = new CopyOnWriteArrayList<>();
+        AsyncBatchExecutor<String> executor = new AsyncBatchExecutor<>(1, 100, new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return false;
+            }
+
+            @Override
+            public void done() {
+            }
+        }, 10, 10);
+        executor.setDispatcher(dispatcher);
+        executor.setShutdownFallbackHandler(new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return fallback.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        });
+        executor.start();
+        executor.add("bla");
+        executor.add("bla2");
+        assertThat(executor.stop(50, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(fallback).containsExactly("bla", "bla2");
+    }
+
+    @Test
+    public void virtualThreadsNeedNewerRuntime() {
+        ThreadFactory factory;
+        try {
+            factory = BatchDispatcher.virtualThreadFactory("virtualWorker-");
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        AsyncBatchExecutor<String> executor = new AsyncBatchExecutor<>(1, 10, new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return true;
+            }
+
+            @Override
+            public void done() {
+            }
+        }, 10, 10);
+        executor.setThreadFactory(factory);
+        executor.start();
+        executor.add("bla");
+        if (!executor.stop(1, TimeUnit.SECONDS)) {
+            fail("virtual worker did not stop");
+        }
+    }
+}
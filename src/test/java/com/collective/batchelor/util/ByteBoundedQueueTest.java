@@ -0,0 +1,83 @@
+package com.collective.batchelor.util;
+
+import com.google.common.collect.Lists;
+import org.eclipse.jetty.util.ConcurrentArrayBlockingQueue;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ByteBoundedQueueTest {
+
+    static final Weigher<String> LENGTH = new Weigher<String>() {
+        @Override
+        public int weigh(String event) {
+            return event.length();
+        }
+    };
+
+    private final ByteBoundedQueue<String> queue = new ByteBoundedQueue<>(new ConcurrentArrayBlockingQueue.Unbounded<String>(), LENGTH, 10);
+
+    @Test
+    public void refusesOnceBytesAreUsedUp() {
+        assertThat(queue.offer("12345")).isTrue();
+        assertThat(queue.offer("1234")).isTrue();
+        assertThat(queue.offer("12")).isFalse();
+        assertThat(queue.offer("1")).isTrue();
+        assertThat(queue.getBytes()).isEqualTo(10);
+        assertThat(queue.poll()).isEqualTo("12345");
+        assertThat(queue.getBytes()).isEqualTo(5);
+        assertThat(queue.offer("12")).isTrue();
+    }
+
+    @Test
+    public void acceptsOversizedEventIntoEmptyQueue() {
+        assertThat(queue.offer("12345678901234")).isTrue();
+        assertThat(queue.offer("1")).isFalse();
+    }
+
+    @Test
+    public void drainAndRemoveReleaseBytes() {
+        ByteBoundedQueue<String> queue = new ByteBoundedQueue<>(new LinkedBlockingQueue<String>(), LENGTH, 10);
+        queue.offer("123");
+        queue.offer("456");
+        queue.offer("789");
+        Iterator<String> iterator = queue.iterator();
+        iterator.next();
+        iterator.remove();
+        assertThat(queue.getBytes()).isEqualTo(6);
+        List<String> drained = Lists.newArrayList();
+        assertThat(queue.drainTo(drained)).isEqualTo(2);
+        assertThat(drained).containsExactly("456", "789");
+        assertThat(queue.getBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void putBlocksUntilBytesAreReleased() throws InterruptedException {
+        queue.offer("1234567890");
+        final CountDownLatch put = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put("123");
+                    put.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        };
+        producer.start();
+        assertThat(put.await(50, TimeUnit.MILLISECONDS)).isFalse();
+        queue.poll();
+        assertThat(put.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(queue.getBytes()).isEqualTo(3);
+        assertThat(queue.offer("1", 10, TimeUnit.MILLISECONDS)).isTrue();
+        queue.offer("123456");
+        assertThat(queue.offer("1", 10, TimeUnit.MILLISECONDS)).isFalse();
+    }
+}
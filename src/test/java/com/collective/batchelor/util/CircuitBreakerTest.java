@@ -0,0 +1,54 @@
+package com.collective.batchelor.util;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 10000);
+        breaker.recordFailure();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        breaker.recordSuccess();
+        breaker.recordFailure();
+        assertThat(breaker.allowRequest()).isTrue();
+        breaker.recordFailure();
+        assertThat(breaker.isOpen()).isTrue();
+        assertThat(breaker.allowRequest()).isFalse();
+        assertThat(breaker.remainingOpenMillis()).isGreaterThan(0);
+    }
+
+    @Test
+    public void trialCallDecidesAfterOpenTime() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.recordFailure();
+        assertThat(breaker.allowRequest()).isFalse();
+        Thread.sleep(30);
+        assertThat(breaker.allowRequest()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        breaker.recordFailure();
+        assertThat(breaker.isOpen()).isTrue();
+        Thread.sleep(30);
+        assertThat(breaker.allowRequest()).isTrue();
+        breaker.recordSuccess();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void halfOpenLetsOnlyOneTrialThrough() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.recordFailure();
+        Thread.sleep(30);
+        assertThat(breaker.allowRequest()).isTrue();
+        assertThat(breaker.allowRequest()).isFalse();
+        breaker.recordFailure();
+        Thread.sleep(30);
+        assertThat(breaker.allowRequest()).isTrue();
+        assertThat(breaker.allowRequest()).isFalse();
+        breaker.recordSuccess();
+        assertThat(breaker.allowRequest()).isTrue();
+        assertThat(breaker.allowRequest()).isTrue();
+    }
+}
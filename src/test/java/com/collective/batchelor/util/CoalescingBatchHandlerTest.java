@@ -0,0 +1,185 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CoalescingBatchHandlerTest {
+
+    private static final Function<String, String> KEY = new Function<String, String>() {
+        @Override
+        public String apply(String input) {
+            int separator = input.indexOf('=');
+            return separator < 0 ? null : input.substring(0, separator);
+        }
+    };
+
+    private static final CoalescingBatchHandler.MergeFunction<String> SUM = new CoalescingBatchHandler.MergeFunction<String>() {
+        @Override
+        public String merge(String merged, String event) {
+            int count = Integer.parseInt(merged.substring(merged.indexOf('=') + 1))
+                    + Integer.parseInt(event.substring(event.indexOf('=') + 1));
+            return KEY.apply(merged) + "=" + count;
+        }
+    };
+
+    // the window timer hands over on its own thread
+    private final List<List<String>> received = new CopyOnWriteArrayList<>();
+    private volatile boolean failing;
+    private final BatchHandler<String> delegate = new BatchHandler<String>() {
+        @Override
+        public boolean handle(List<String> batch) {
+            if (failing)
+                return false;
+            return received.add(ImmutableList.copyOf(batch));
+        }
+
+        @Override
+        public void done() {
+        }
+    };
+
+    @After
+    public void resetClock() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void mergesEventsWithSameKeyInFirstPosition() {
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate);
+        assertThat(handler.handle(ImmutableList.of("a=1", "b=2", "raw", "a=3", "c=1", "b=1"))).isTrue();
+        assertThat(received).containsExactly(ImmutableList.of("a=4", "b=3", "raw", "c=1"));
+        assertThat(handler.getEventsIn()).isEqualTo(6);
+        assertThat(handler.getEventsOut()).isEqualTo(4);
+        assertThat(handler.getReductionRatio()).isEqualTo(1 - 4.0 / 6);
+        assertThat(handler.handle(ImmutableList.of("a=1"))).isTrue();
+        assertThat(received.get(1)).containsExactly("a=1");
+    }
+
+    @Test
+    public void failedBatchIsMergedAgainOnRetry() {
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate);
+        List<String> batch = ImmutableList.of("a=1", "a=2");
+        failing = true;
+        assertThat(handler.handle(batch)).isFalse();
+        failing = false;
+        assertThat(handler.handle(batch)).isTrue();
+        assertThat(received).containsExactly(ImmutableList.of("a=3"));
+        assertThat(handler.getEventsIn()).isEqualTo(2);
+    }
+
+    @Test
+    public void mergesAcrossBatchesWithinWindow() {
+        DateTimeUtils.setCurrentMillisFixed(1000);
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate, 100);
+        assertThat(handler.handle(ImmutableList.of("a=1", "b=1"))).isTrue();
+        DateTimeUtils.setCurrentMillisFixed(1050);
+        assertThat(handler.handle(ImmutableList.of("a=1"))).isTrue();
+        assertThat(received).isEmpty();
+
+        DateTimeUtils.setCurrentMillisFixed(1100);
+        failing = true;
+        // the window is up, the batch is not taken until the window was handed over
+        List<String> last = ImmutableList.of("b=5");
+        assertThat(handler.handle(last)).isFalse();
+        failing = false;
+        assertThat(handler.handle(last)).isTrue();
+        assertThat(received).containsExactly(ImmutableList.of("a=2", "b=1"));
+
+        assertThat(handler.handle(ImmutableList.of("b=1", "c=1"))).isTrue();
+        handler.done();
+        assertThat(received.get(1)).containsExactly("b=6", "c=1");
+    }
+
+    @Test
+    public void flushHandsOverWindow() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(1000);
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate, 100);
+        handler.setRetryPolicy(RetryPolicy.fixed(10));
+        assertThat(handler.flushAsync().isDone()).isTrue();
+        assertThat(handler.handle(ImmutableList.of("a=1", "a=1"))).isTrue();
+        failing = true;
+        ListenableFuture<Void> flushed = handler.flushAsync();
+        Thread.sleep(50);
+        assertThat(flushed.isDone()).isFalse();
+        failing = false;
+        flushed.get(1, TimeUnit.SECONDS);
+        assertThat(received).containsExactly(ImmutableList.of("a=2"));
+        handler.done();
+    }
+
+    @Test
+    public void windowIsHandedOverWhenItIsUp() throws Exception {
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate, 20);
+        assertThat(handler.handle(ImmutableList.of("a=1", "a=1"))).isTrue();
+        for (int i = 0; i < 100 && received.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(received).containsExactly(ImmutableList.of("a=2"));
+        handler.done();
+    }
+
+    @Test
+    public void fullWindowIsHandedOverEarly() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(1000);
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate, 60000);
+        handler.setMaxWindowSize(3);
+        handler.setRetryPolicy(RetryPolicy.fixed(60000));
+        assertThat(handler.handle(ImmutableList.of("a=1", "b=1"))).isTrue();
+        failing = true;
+        assertThat(handler.handle(ImmutableList.of("c=1", "a=1"))).isTrue();
+        // full and not handed over yet, the window does not grow
+        assertThat(handler.handle(ImmutableList.of("d=1"))).isFalse();
+        failing = false;
+        assertThat(handler.handle(ImmutableList.of("d=1"))).isTrue();
+        assertThat(received).containsExactly(ImmutableList.of("a=2", "b=1", "c=1"));
+        handler.done();
+        assertThat(received.get(1)).containsExactly("d=1");
+    }
+
+    @Test
+    public void doneHandsWindowToFallback() {
+        CoalescingBatchHandler<String, String> handler = new CoalescingBatchHandler<>(KEY, SUM, delegate, 60000);
+        handler.setRetryPolicy(RetryPolicy.fixed(1));
+        final List<String> fallback = new CopyOnWriteArrayList<>();
+        handler.setFallbackHandler(new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return fallback.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        });
+        assertThat(handler.handle(ImmutableList.of("a=1", "b=1", "a=1"))).isTrue();
+        failing = true;
+        handler.done();
+        assertThat(fallback).containsExactly("a=2", "b=1");
+        assertThat(received).isEmpty();
+    }
+
+    @Test
+    public void keyIndexGrowsAndClears() {
+        CoalescingBatchHandler.KeyIndex index = new CoalescingBatchHandler.KeyIndex();
+        for (int i = 0; i < 1000; i++) {
+            assertThat(index.positionOf(i, i)).isEqualTo(-1);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertThat(index.positionOf(i, -5)).isEqualTo(i);
+        }
+        assertThat(index.size()).isEqualTo(1000);
+        index.clear();
+        assertThat(index.size()).isEqualTo(0);
+        assertThat(index.positionOf(7, 0)).isEqualTo(-1);
+    }
+}
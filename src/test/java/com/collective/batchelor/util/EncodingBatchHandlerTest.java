@@ -0,0 +1,78 @@
+package com.collective.batchelor.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class EncodingBatchHandlerTest {
+
+    private static final Encoder<Integer, String> HEX = new Encoder<Integer, String>() {
+        @Override
+        public String encode(Integer event) {
+            if (event < 0)
+                throw new IllegalArgumentException("negative");
+            return Integer.toHexString(event);
+        }
+    };
+
+    @Test
+    public void encodesBatchBeforeHandingItOn() {
+        final List<String> received = new CopyOnWriteArrayList<>();
+        EncodingBatchHandler<Integer, String> handler = new EncodingBatchHandler<>(HEX, new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return received.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        });
+        assertThat(handler.handle(Arrays.asList(10, -1, 255))).isTrue();
+        assertThat(received).containsExactly("a", "ff");
+        assertThat(handler.getSkippedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void executorEncodesOnWorkerThread() {
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        Encoder<Integer, String> recordingThread = new Encoder<Integer, String>() {
+            @Override
+            public String encode(Integer event) {
+                threads.add(Thread.currentThread().getName());
+                return HEX.encode(event);
+            }
+        };
+        AsyncBatchExecutor<Integer> executor = AsyncBatchExecutor.createAndStart(10, 100, recordingThread, new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return received.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        }, 10, 10);
+        executor.add(16);
+        executor.add(17);
+        executor.stop();
+        assertThat(received).containsExactly("10", "11");
+        assertThat(threads).hasSize(2);
+        assertThat(threads.get(0)).startsWith("asyncBatchWorkerThread-");
+    }
+
+    @Test
+    public void doneIsPassedOn() {
+        //noinspection unchecked
+        BatchHandler<String> delegate = mock(BatchHandler.class);
+        new EncodingBatchHandler<>(HEX, delegate).done();
+        verify(delegate).done();
+    }
+}
@@ -0,0 +1,164 @@
+package com.collective.batchelor.util;
+
+import com.collective.batchelor.metrics.CountingBatchMetrics;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class FanOutBatchExecutorTest {
+
+    private final List<String> fast = new CopyOnWriteArrayList<>();
+    private final List<String> slow = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean slowFailing = new AtomicBoolean(true);
+    private FanOutBatchExecutor<String> executor;
+
+    @Before
+    public void setupExecutor() {
+        BatchHandler<String> fastHandler = new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return fast.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+        BatchHandler<String> slowHandler = new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                return !slowFailing.get() && slow.addAll(batch);
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+        executor = FanOutBatchExecutor.createAndStart(5, 20, Arrays.asList(fastHandler, slowHandler), 10, 5);
+    }
+
+    @After
+    public void stopExecutor() {
+        slowFailing.set(false);
+        executor.stop();
+    }
+
+    @Test
+    public void failingHandlerDoesNotHoldBackOthers() throws InterruptedException {
+        for (int i = 0; i < 15; i++) {
+            executor.add(Integer.toString(i));
+        }
+        assertThat(executor.flush(100, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(fast).hasSize(15);
+        assertThat(slow).isEmpty();
+        assertThat(executor.getLag(0)).isEqualTo(0);
+        assertThat(executor.getLag(1)).isEqualTo(15);
+        assertThat(executor.getSize()).isEqualTo(15);
+
+        slowFailing.set(false);
+        executor.flush();
+        assertThat(slow).isEqualTo(fast);
+        for (int i = 0; i < 15; i++) {
+            assertThat(slow.get(i)).isEqualTo(Integer.toString(i));
+        }
+        assertThat(executor.getSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void producerBlocksOnceSlowestHandlerLagsCapacity() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            executor.add(Integer.toString(i));
+        }
+        final CountDownLatch added = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                executor.add("20");
+                added.countDown();
+            }
+        }.start();
+        assertThat(added.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        slowFailing.set(false);
+        assertThat(added.await(1, TimeUnit.SECONDS)).isTrue();
+        executor.flush();
+        assertThat(slow).hasSize(21);
+        assertThat(fast).hasSize(21);
+    }
+
+    @Test
+    public void stopGivesUpOnFailingHandlerAfterTimeout() {
+        executor.add("bla");
+        long start = System.currentTimeMillis();
+        assertThat(executor.stop(50, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(System.currentTimeMillis() - start).isLessThan(1000);
+        assertThat(fast).containsExactly("bla");
+        assertThat(slow).isEmpty();
+    }
+
+    @Test
+    public void skipAheadHandlerSkipsEventsInsteadOfBlockingProducers() throws InterruptedException {
+        CountingBatchMetrics metrics = new CountingBatchMetrics();
+        executor.setMetrics(metrics);
+        executor.setLagPolicy(1, FanOutBatchExecutor.LagPolicy.SKIP_AHEAD);
+        final CountDownLatch added = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 30; i++) {
+                    executor.add(Integer.toString(i));
+                }
+                added.countDown();
+            }
+        }.start();
+        assertThat(added.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(executor.getSkippedCount(0)).isEqualTo(0);
+        assertThat(executor.getSkippedCount(1)).isGreaterThan(0);
+        assertThat(executor.getLag(1)).isLessThanOrEqualTo(20);
+
+        slowFailing.set(false);
+        executor.flush();
+        assertThat(fast).hasSize(30);
+        assertThat(slow.size() + executor.getSkippedCount(1)).isEqualTo(30);
+        assertThat(slow.get(slow.size() - 1)).isEqualTo("29");
+        assertThat(metrics.getDroppedCount()).isEqualTo(executor.getSkippedCount(1));
+    }
+
+    @Test
+    public void stopAbandonsHandlerStuckInHandle() {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        BatchHandler<String> stuckHandler = new BatchHandler<String>() {
+            @Override
+            public boolean handle(List<String> batch) {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return true;
+            }
+
+            @Override
+            public void done() {
+                done.set(true);
+            }
+        };
+        FanOutBatchExecutor<String> stuck = FanOutBatchExecutor.createAndStart(5, 20, Collections.singletonList(stuckHandler), 10, 5);
+        try {
+            stuck.add("bla");
+            long start = System.currentTimeMillis();
+            assertThat(stuck.stop(50, TimeUnit.MILLISECONDS)).isFalse();
+            assertThat(System.currentTimeMillis() - start).isLessThan(1000);
+            assertThat(done.get()).isFalse();
+        } finally {
+            release.countDown();
+        }
+    }
+}
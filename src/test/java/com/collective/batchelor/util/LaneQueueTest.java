@@ -0,0 +1,74 @@
+package com.collective.batchelor.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LaneQueueTest {
+
+    @Test
+    public void strictDrainsHigherLanesFirst() {
+        LaneQueue<String> queue = new LaneQueue<>(ImmutableList.of(
+                Lane.of(10, OverflowPolicy.<String>block()),
+                Lane.of(10, OverflowPolicy.<String>block())), Lane.Selection.STRICT);
+        queue.offer("low1");
+        queue.lane(1).offer("low2");
+        queue.lane(0).offer("high1");
+        assertThat(queue.size()).isEqualTo(3);
+        List<String> drained = Lists.newArrayList();
+        queue.drainTo(drained);
+        assertThat(drained).containsExactly("high1", "low1", "low2");
+    }
+
+    @Test
+    public void weightedSharesByWeight() {
+        LaneQueue<String> queue = new LaneQueue<>(ImmutableList.of(
+                Lane.of(100, 3, OverflowPolicy.<String>block()),
+                Lane.of(100, 1, OverflowPolicy.<String>block())), Lane.Selection.WEIGHTED);
+        for (int i = 0; i < 20; i++) {
+            queue.lane(0).offer("high");
+            queue.lane(1).offer("low");
+        }
+        List<String> drained = Lists.newArrayList();
+        queue.drainTo(drained, 8);
+        assertThat(drained).containsOnly("high", "low");
+        int low = 0;
+        for (String event : drained) {
+            if (event.equals("low")) {
+                low++;
+            }
+        }
+        assertThat(low).isEqualTo(2);
+        // a lane alone gets everything
+        queue.lane(0).clear();
+        drained.clear();
+        queue.drainTo(drained, 5);
+        assertThat(drained).containsOnly("low").hasSize(5);
+    }
+
+    @Test
+    public void pollWakesUpOnLaneOffer() throws InterruptedException {
+        final LaneQueue<String> queue = new LaneQueue<>(ImmutableList.of(
+                Lane.of(10, OverflowPolicy.<String>block()),
+                Lane.of(10, OverflowPolicy.<String>block())), Lane.Selection.STRICT);
+        assertThat(queue.poll(10, TimeUnit.MILLISECONDS)).isNull();
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.lane(0).put("high");
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }.start();
+        long start = System.nanoTime();
+        assertThat(queue.poll(5, TimeUnit.SECONDS)).isEqualTo("high");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+    }
+}
@@ -0,0 +1,62 @@
+package com.collective.batchelor.util;
+
+import com.google.common.base.Function;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.offset;
+
+public class LoadShedderTest {
+
+    private final LoadShedder<String> shedder = new LoadShedder<>(0.5f, 0.2, new Function<String, Object>() {
+        @Override
+        public Object apply(String input) {
+            return input.substring(0, input.indexOf(':'));
+        }
+    });
+
+    @Test
+    public void keepsEverythingBelowLowWatermark() {
+        for (int i = 0; i < 100; i++) {
+            assertThat(shedder.keep("debug:" + i, 0.5f)).isTrue();
+        }
+        assertThat(shedder.getKeptCount("debug")).isEqualTo(0);
+        assertThat(shedder.getSampledOutCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void keepRateFallsLinearlyToMinKeepRate() {
+        shedder.setMinKeepRate("error", 1);
+        assertThat(shedder.getKeepRate("debug", 0.25f)).isEqualTo(1.0);
+        assertThat(shedder.getKeepRate("debug", 0.75f)).isEqualTo(0.6, offset(0.0001));
+        assertThat(shedder.getKeepRate("debug", 1f)).isEqualTo(0.2, offset(0.0001));
+        assertThat(shedder.getKeepRate("error", 1f)).isEqualTo(1.0);
+    }
+
+    @Test
+    public void countsSampledOutEventsPerClass() {
+        shedder.setMinKeepRate("debug", 0);
+        shedder.setMinKeepRate("error", 1);
+        for (int i = 0; i < 100; i++) {
+            assertThat(shedder.keep("debug:" + i, 1f)).isFalse();
+            assertThat(shedder.keep("error:" + i, 1f)).isTrue();
+        }
+        assertThat(shedder.getSampledOutCount("debug")).isEqualTo(100);
+        assertThat(shedder.getKeptCount("debug")).isEqualTo(0);
+        assertThat(shedder.getSampledOutCount("error")).isEqualTo(0);
+        assertThat(shedder.getKeptCount("error")).isEqualTo(100);
+        assertThat(shedder.getSampledOutCount()).isEqualTo(100);
+    }
+
+    @Test
+    public void samplesAtKeepRate() {
+        int kept = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (shedder.keep("info:" + i, 0.75f)) {
+                kept++;
+            }
+        }
+        assertThat(kept).isGreaterThan(5500).isLessThan(6500);
+        assertThat(shedder.getKeptCount("info") + shedder.getSampledOutCount("info")).isEqualTo(10000);
+    }
+}
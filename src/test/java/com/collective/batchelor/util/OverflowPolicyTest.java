@@ -0,0 +1,64 @@
+package com.collective.batchelor.util;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class OverflowPolicyTest {
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(1);
+
+    @Test
+    public void dropNewestKeepsQueuedEvent() throws InterruptedException {
+        OverflowPolicy<String> policy = OverflowPolicy.dropNewest();
+        policy.enqueue(queue, "a");
+        policy.enqueue(queue, "b");
+        assertThat(queue).containsExactly("a");
+        assertThat(policy.getDroppedCount()).isEqualTo(1);
+        assertThat(policy.getRejectedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void dropOldestMakesRoomForNewEvent() throws InterruptedException {
+        OverflowPolicy<String> policy = OverflowPolicy.dropOldest();
+        policy.enqueue(queue, "a");
+        policy.enqueue(queue, "b");
+        assertThat(queue).containsExactly("b");
+        assertThat(policy.getDroppedCount()).isEqualTo(1);
+        assertThat(policy.getRejectedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void blockForGivesUpAfterTimeout() throws InterruptedException {
+        OverflowPolicy<String> policy = OverflowPolicy.blockFor(20, TimeUnit.MILLISECONDS);
+        policy.enqueue(queue, "a");
+        long start = System.nanoTime();
+        policy.enqueue(queue, "b");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(15);
+        assertThat(queue).containsExactly("a");
+        assertThat(policy.getDroppedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void fallbackReceivesRejectedEvents() throws InterruptedException {
+        //noinspection unchecked
+        BatchHandler<String> fallback = mock(BatchHandler.class);
+        when(fallback.handle(Collections.singletonList("b"))).thenReturn(true);
+        OverflowPolicy<String> policy = OverflowPolicy.fallbackTo(fallback);
+        policy.enqueue(queue, "a");
+        policy.enqueue(queue, "b");
+        policy.enqueue(queue, "c");
+        verify(fallback).handle(Collections.singletonList("b"));
+        assertThat(policy.getRejectedCount()).isEqualTo(2);
+        // c was not accepted by the fallback
+        assertThat(policy.getDroppedCount()).isEqualTo(1);
+    }
+}
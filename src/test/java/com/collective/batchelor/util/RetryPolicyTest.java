@@ -0,0 +1,33 @@
+package com.collective.batchelor.util;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void fixedPolicyAlwaysWaitsTheSame() {
+        RetryPolicy policy = RetryPolicy.fixed(100);
+        assertThat(policy.delayMillis(1)).isEqualTo(100);
+        assertThat(policy.delayMillis(50)).isEqualTo(100);
+    }
+
+    @Test
+    public void exponentialBackoffDoublesUpToMax() {
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(100, 1000, 0);
+        assertThat(policy.delayMillis(1)).isEqualTo(100);
+        assertThat(policy.delayMillis(2)).isEqualTo(200);
+        assertThat(policy.delayMillis(4)).isEqualTo(800);
+        assertThat(policy.delayMillis(5)).isEqualTo(1000);
+        assertThat(policy.delayMillis(1000)).isEqualTo(1000);
+    }
+
+    @Test
+    public void jitterOnlyShortensTheDelay() {
+        RetryPolicy policy = RetryPolicy.exponentialBackoff(100, 1000, 0.5);
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.delayMillis(3)).isGreaterThanOrEqualTo(200).isLessThanOrEqualTo(400);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.collective.batchelor.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class RingBufferQueueTest {
+
+    @Test
+    public void isBoundedAndFifo() {
+        RingBufferQueue<String> queue = new RingBufferQueue<>(3, WaitStrategy.BUSY_SPIN);
+        assertThat(queue.offer("a")).isTrue();
+        assertThat(queue.offer("b")).isTrue();
+        assertThat(queue.offer("c")).isTrue();
+        assertThat(queue.offer("d")).isFalse();
+        assertThat(queue.size()).isEqualTo(3);
+        assertThat(queue.remainingCapacity()).isEqualTo(0);
+        assertThat(queue.peek()).isEqualTo("a");
+        assertThat(queue.poll()).isEqualTo("a");
+        assertThat(queue.offer("d")).isTrue();
+        List<String> drained = new ArrayList<>();
+        assertThat(queue.drainTo(drained)).isEqualTo(3);
+        assertThat(drained).containsExactly("b", "c", "d");
+        assertThat(queue.poll()).isNull();
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void timedOperationsGiveUpAfterTimeout() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            RingBufferQueue<String> queue = new RingBufferQueue<>(1, strategy);
+            assertThat(queue.poll(20, TimeUnit.MILLISECONDS)).isNull();
+            queue.put("a");
+            assertThat(queue.offer("b", 20, TimeUnit.MILLISECONDS)).isFalse();
+        }
+    }
+
+    @Test
+    public void blockingStrategyWakesUpConsumer() throws InterruptedException {
+        final RingBufferQueue<String> queue = new RingBufferQueue<>(4, WaitStrategy.BLOCKING);
+        final CountDownLatch latch = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if ("a".equals(queue.poll(5, TimeUnit.SECONDS)))
+                        latch.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }).start();
+        Thread.sleep(50);
+        queue.put("a");
+        assertThat(latch.await(1000, TimeUnit.MILLISECONDS)).isTrue();
+    }
+
+    @Test
+    public void multipleProducersDoNotLoseEvents() throws InterruptedException {
+        for (WaitStrategy strategy : WaitStrategy.values()) {
+            final RingBufferQueue<Integer> queue = new RingBufferQueue<>(16, strategy);
+            final int producers = 4;
+            final int perProducer = 10000;
+            for (int p = 0; p < producers; p++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < perProducer; i++) {
+                                queue.put(i);
+                            }
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }).start();
+            }
+            long sum = 0;
+            for (int i = 0; i < producers * perProducer; i++) {
+                Integer value = queue.poll(5, TimeUnit.SECONDS);
+                assertThat(value).isNotNull();
+                sum += value;
+            }
+            assertThat(sum).isEqualTo(producers * ((long) perProducer * (perProducer - 1) / 2));
+            assertThat(queue.isEmpty()).isTrue();
+        }
+    }
+}